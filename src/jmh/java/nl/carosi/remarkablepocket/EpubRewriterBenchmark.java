@@ -0,0 +1,60 @@
+package nl.carosi.remarkablepocket;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Formats and validates an epub.press book, which happens for every downloaded article.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class EpubRewriterBenchmark {
+  @Param({"small", "medium", "images"})
+  public String size;
+
+  // Images are not optimized when 0.
+  @Param({"0", "75"})
+  public int imageQuality;
+
+  private EpubRewriter rewriter;
+  private byte[] epub;
+  private Path target;
+
+  @Setup
+  public void setUp() throws IOException {
+    rewriter =
+        new EpubRewriter(
+            new SyncMetrics(new SimpleMeterRegistry(), 10, ""),
+            new ImageOptimizer(imageQuality, false, 5));
+    epub = Fixtures.epub(Fixtures.Size.valueOf(size.toUpperCase()));
+    target = Files.createTempFile("benchmark", ".epub");
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(target);
+  }
+
+  @Benchmark
+  public boolean rewrite() throws IOException {
+    return rewriter.rewrite(new ByteArrayInputStream(epub), target, Fixtures.ARTICLE.title());
+  }
+}
@@ -0,0 +1,230 @@
+package nl.carosi.remarkablepocket;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static nl.carosi.remarkablepocket.ArticleDownloader.publisherOf;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Random;
+import java.util.UUID;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import javax.imageio.ImageIO;
+import nl.carosi.remarkablepocket.model.Article;
+
+// Generates epubs laid out like the ones epub.press produces, and the bundles the Remarkable Cloud
+// returns for them. The content is generated from a fixed seed, so every run uses the same bytes.
+final class Fixtures {
+  static final Article ARTICLE =
+      Article.of("3812741983", "https://example.com/articles/benchmark", "Benchmark Article");
+
+  // The sizes of typical articles: a short post, a long read, and a photo essay.
+  enum Size {
+    SMALL(8, 0, 0),
+    MEDIUM(60, 3, 640),
+    IMAGES(25, 20, 1280);
+
+    private final int paragraphs;
+    private final int images;
+    private final int imageWidth;
+
+    Size(int paragraphs, int images, int imageWidth) {
+      this.paragraphs = paragraphs;
+      this.images = images;
+      this.imageWidth = imageWidth;
+    }
+  }
+
+  private static final String WORDS =
+      "the remarkable tablet renders articles as reflowable epubs so that the font size margins "
+          + "and line height can be changed while reading which makes long texts pleasant to read "
+          + "away from a screen because the display reflects light like paper does";
+
+  private Fixtures() {}
+
+  static byte[] epub(Size size) {
+    Random random = new Random(size.ordinal());
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ZipOutputStream out = new ZipOutputStream(bytes)) {
+      byte[] mimetype = "application/epub+zip".getBytes(UTF_8);
+      CRC32 crc = new CRC32();
+      crc.update(mimetype);
+      ZipEntry entry = new ZipEntry("mimetype");
+      entry.setMethod(ZipEntry.STORED);
+      entry.setSize(mimetype.length);
+      entry.setCrc(crc.getValue());
+      out.putNextEntry(entry);
+      out.write(mimetype);
+      out.closeEntry();
+
+      put(out, "META-INF/container.xml", container());
+      put(out, "OEBPS/content.opf", opf(size));
+      put(out, "OEBPS/toc.ncx", "<ncx/>");
+      put(out, "OEBPS/cover.xhtml", xhtml("Cover", "<img src=\"images/cover.png\"/>"));
+      put(out, "OEBPS/content/toc.xhtml", xhtml("Contents", "<ol><li>Article</li></ol>"));
+      put(out, "OEBPS/content/s1.xhtml", xhtml(ARTICLE.title(), content(size, random)));
+      put(out, "OEBPS/content/s2.xhtml", xhtml("References", "<p>" + ARTICLE.url() + "</p>"));
+      put(out, "OEBPS/images/cover.png", image(600, 800, random, "png"));
+      for (int i = 0; i < size.images; i++) {
+        put(
+            out,
+            "OEBPS/images/img" + i + ".jpg",
+            image(size.imageWidth, size.imageWidth * 2 / 3, random, "jpg"));
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  // A document bundle as downloaded from the Remarkable Cloud, containing the uploaded epub.
+  static byte[] rmdoc(byte[] epub, int pageCount) {
+    String id = UUID.nameUUIDFromBytes(epub).toString();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ZipOutputStream out = new ZipOutputStream(bytes)) {
+      put(
+          out,
+          id + ".content",
+          "{\"fileType\":\"epub\",\"pageCount\":" + pageCount + ",\"orientation\":\"portrait\"}");
+      out.putNextEntry(new ZipEntry(id + ".epub"));
+      out.write(epub);
+      out.closeEntry();
+      put(
+          out,
+          id + ".metadata",
+          "{\"visibleName\":\"" + ARTICLE.title() + "\",\"type\":\"DocumentType\"}");
+      put(out, id + ".pagedata", "Blank\n".repeat(pageCount));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static void put(ZipOutputStream out, String name, String content) throws IOException {
+    put(out, name, content.getBytes(UTF_8));
+  }
+
+  private static void put(ZipOutputStream out, String name, byte[] content) throws IOException {
+    out.putNextEntry(new ZipEntry(name));
+    out.write(content);
+    out.closeEntry();
+  }
+
+  private static String container() {
+    return """
+        <?xml version="1.0" encoding="UTF-8"?>
+        <container version="1.0" xmlns="urn:oasis:names:tc:opendocument:xmlns:container">
+          <rootfiles>
+            <rootfile full-path="OEBPS/content.opf" media-type="application/oebps-package+xml"/>
+          </rootfiles>
+        </container>
+        """;
+  }
+
+  private static String opf(Size size) {
+    StringBuilder images = new StringBuilder();
+    for (int i = 0; i < size.images; i++) {
+      images.append(
+          "<item id=\"img%d\" href=\"images/img%d.jpg\" media-type=\"image/jpeg\"/>"
+              .formatted(i, i));
+    }
+    return """
+        <?xml version="1.0" encoding="UTF-8"?>
+        <package xmlns="http://www.idpf.org/2007/opf" version="2.0" unique-identifier="BookId">
+          <metadata xmlns:dc="http://purl.org/dc/elements/1.1/">
+            <dc:title>Untitled</dc:title>
+            <dc:title>%s</dc:title>
+            <dc:publisher>%s</dc:publisher>
+            <dc:identifier id="BookId">%s</dc:identifier>
+            <dc:language>en</dc:language>
+            <meta name="cover" content="cover-image"/>
+          </metadata>
+          <manifest>
+            <item id="ncx" href="toc.ncx" media-type="application/x-dtbncx+xml"/>
+            <item id="cover" href="cover.xhtml" media-type="application/xhtml+xml"/>
+            <item id="cover-image" href="images/cover.png" media-type="image/png"/>
+            <item id="toc" href="content/toc.xhtml" media-type="application/xhtml+xml"/>
+            <item id="s1" href="content/s1.xhtml" media-type="application/xhtml+xml"/>
+            <item id="s2" href="content/s2.xhtml" media-type="application/xhtml+xml"/>
+            %s
+          </manifest>
+          <spine toc="ncx">
+            <itemref idref="cover"/>
+            <itemref idref="toc"/>
+            <itemref idref="s1"/>
+            <itemref idref="s2"/>
+          </spine>
+          <guide>
+            <reference type="cover" href="cover.xhtml"/>
+          </guide>
+        </package>
+        """
+        .formatted(ARTICLE.title(), publisherOf(ARTICLE), ARTICLE.url(), images);
+  }
+
+  private static String xhtml(String title, String body) {
+    return """
+        <?xml version="1.0" encoding="UTF-8"?>
+        <html xmlns="http://www.w3.org/1999/xhtml">
+        <head><title>%s</title></head>
+        <body>%s</body>
+        </html>
+        """
+        .formatted(title, body);
+  }
+
+  private static String content(Size size, Random random) {
+    String[] words = WORDS.split(" ");
+    StringBuilder body = new StringBuilder("<h1>").append(ARTICLE.title()).append("</h1>");
+    for (int i = 0; i < size.paragraphs; i++) {
+      body.append("<p>");
+      for (int j = 0; j < 80; j++) {
+        body.append(words[random.nextInt(words.length)]).append(' ');
+      }
+      body.append("</p>");
+      if (size.images > 0 && i % Math.max(1, size.paragraphs / size.images) == 0) {
+        body.append("<img src=\"../images/img")
+            .append(i * size.images / size.paragraphs)
+            .append(".jpg\"/>");
+      }
+    }
+    return body.toString();
+  }
+
+  // A colored photo-like image: smooth shapes with noise, which compresses like a photo.
+  private static byte[] image(int width, int height, Random random, String format)
+      throws IOException {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Graphics2D graphics = image.createGraphics();
+    for (int i = 0; i < 12; i++) {
+      graphics.setColor(new Color(random.nextInt(0xFFFFFF)));
+      graphics.fillOval(
+          random.nextInt(width), random.nextInt(height), width / 2 + 1, height / 2 + 1);
+    }
+    graphics.dispose();
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int noise = random.nextInt(32) - 16;
+        int rgb = image.getRGB(x, y);
+        image.setRGB(
+            x,
+            y,
+            clamp(((rgb >> 16) & 0xFF) + noise) << 16
+                | clamp(((rgb >> 8) & 0xFF) + noise) << 8
+                | clamp((rgb & 0xFF) + noise));
+      }
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ImageIO.write(image, format, bytes);
+    return bytes.toByteArray();
+  }
+
+  private static int clamp(int value) {
+    return Math.max(0, Math.min(255, value));
+  }
+}
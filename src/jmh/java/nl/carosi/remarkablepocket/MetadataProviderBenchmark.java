@@ -0,0 +1,124 @@
+package nl.carosi.remarkablepocket;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import javax.xml.stream.XMLStreamException;
+import nl.carosi.remarkablepocket.model.Document;
+import nl.carosi.remarkablepocket.model.DocumentMetadata;
+import nl.carosi.remarkablepocket.model.RemarkableEntry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Reads the page count and Pocket ID from a document bundle, which happens for every document on
+// the Remarkable that changed since the previous sync.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MetadataProviderBenchmark {
+  private static final int PAGE_COUNT = 12;
+
+  @Param({"small", "medium", "images"})
+  public String size;
+
+  // Small bundles and their epubs are read from memory, larger ones from the working storage.
+  @Param({"memory", "disk"})
+  public String storage;
+
+  private MetadataProvider metadataProvider;
+  private Document doc;
+  private Path bundle;
+  private WorkingStorage workingStorage;
+
+  @Setup
+  public void setUp() throws IOException {
+    byte[] rmdoc =
+        Fixtures.rmdoc(Fixtures.epub(Fixtures.Size.valueOf(size.toUpperCase())), PAGE_COUNT);
+    bundle = Files.write(Files.createTempFile("benchmark", ".zip"), rmdoc);
+    workingStorage = new WorkingStorage(100, storage.equals("memory") ? 10 * 1024 : 0);
+    doc = new Document(0, Fixtures.ARTICLE.title(), "benchmark", 1, "0");
+    metadataProvider =
+        new MetadataProvider(
+            new BundleClient(bundle, storage.equals("memory") ? rmdoc : null),
+            new ObjectMapper(),
+            null,
+            null,
+            null,
+            new SyncMetrics(new SimpleMeterRegistry(), 10, ""),
+            workingStorage);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(bundle);
+    workingStorage.delete();
+  }
+
+  @Benchmark
+  public DocumentMetadata downloadMetadata() throws IOException, XMLStreamException {
+    return metadataProvider.downloadMetadata(doc.name(), doc, Optional.empty());
+  }
+
+  // Serves the same bundle for every document. It is read from disk when there is no data.
+  private record BundleClient(Path bundle, byte[] data) implements RemarkableClient {
+    @Override
+    public void openSession() {}
+
+    @Override
+    public void closeSession() {}
+
+    @Override
+    public List<RemarkableEntry> list() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Document info(String articleName) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public DocumentBundle download(String articleName) {
+      // Closing the bundle must not delete it, since it is served again.
+      return data != null ? DocumentBundle.inMemory(data) : DocumentBundle.onDisk(bundle, () -> {});
+    }
+
+    @Override
+    public void upload(Path path) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void uploadAll(List<Path> paths) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void delete(String articleName) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void createDir(String path) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,37 @@
+package nl.carosi.remarkablepocket.model;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Sanitizes article titles, which happens for every article retrieved from Pocket.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ArticleBenchmark {
+  private static final String[] TITLES = {
+    "Getting Unstuck",
+    "Hunting down a C memory leak in a Go program",
+    "Beginner’s Guide To Abstraction: What “Modules” Are About",
+    "SSH Tunneling Explained / A Visual Guide \\ With Examples",
+    "Q&A:  Why   the \"New\" Sync Protocol Matters: Part 2",
+  };
+
+  @Benchmark
+  public void sanitize(Blackhole blackhole) {
+    for (String title : TITLES) {
+      blackhole.consume(Article.of("1", "https://example.com", title));
+    }
+  }
+}
@@ -0,0 +1,13 @@
+package nl.carosi.remarkablepocket;
+
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+
+// The parent context of the accounts when several accounts are synchronized. It holds what the
+// accounts share, like the metrics registry and the web server with the metrics and sync
+// endpoints. Each account has a child SyncApplication context with its own configuration directory.
+@Configuration(proxyBeanMethods = false)
+@EnableAutoConfiguration
+@Import(SyncEndpoint.class)
+class AccountsApplication {}
@@ -0,0 +1,208 @@
+package nl.carosi.remarkablepocket;
+
+import com.google.common.collect.Lists;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.*;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import nl.carosi.remarkablepocket.model.Article;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+// A local copy of the unread articles on Pocket. It is kept up to date by applying the changes
+// since the previous update, which the cursor points to.
+public class ArticleCatalog {
+  private static final Logger LOG = LoggerFactory.getLogger(ArticleCatalog.class);
+  private static final String DB_NAME = "catalog.db";
+  private static final String CURSOR_KEY = "cursor";
+  private static final String TAG_FILTER_KEY = "tag_filter";
+  private static final String REFRESHED_KEY = "refreshed";
+  private final Path dbPath;
+  private Connection conn;
+
+  public ArticleCatalog(@Value("${config.dir}") Path configDir) {
+    this.dbPath = configDir.resolve(DB_NAME);
+    initializeDatabase();
+  }
+
+  private void initializeDatabase() {
+    try {
+      Files.createDirectories(dbPath.getParent());
+      String url = "jdbc:sqlite:" + dbPath;
+      conn = DriverManager.getConnection(url);
+
+      try (Statement stmt = conn.createStatement()) {
+        // Articles are ordered by 'seq', which is higher for more recently added articles.
+        stmt.execute(
+            "CREATE TABLE IF NOT EXISTS articles ("
+                + "id TEXT PRIMARY KEY, "
+                + "url TEXT NOT NULL, "
+                + "title TEXT NOT NULL, "
+                + "seq INTEGER NOT NULL)");
+        stmt.execute(
+            "CREATE TABLE IF NOT EXISTS catalog_state (" + "key TEXT PRIMARY KEY, value TEXT)");
+      }
+      LOG.debug("Article catalog initialized at: {}", dbPath);
+    } catch (SQLException | IOException e) {
+      LOG.error("Error initializing article catalog", e);
+    }
+  }
+
+  // Returns the time Pocket reported for the previous update if the catalog was filled using the
+  // same tag filter.
+  public synchronized Optional<Instant> cursor(String tagFilter) {
+    if (!tagFilter.equals(getState(TAG_FILTER_KEY))) {
+      return Optional.empty();
+    }
+    return Optional.ofNullable(getState(CURSOR_KEY))
+        .map(Long::parseLong)
+        .map(Instant::ofEpochSecond);
+  }
+
+  // Returns the time at which the catalog was last filled from scratch.
+  public synchronized Optional<Instant> refreshed() {
+    return Optional.ofNullable(getState(REFRESHED_KEY))
+        .map(Long::parseLong)
+        .map(Instant::ofEpochSecond);
+  }
+
+  // Replaces the catalog's contents. The articles are expected in newest first order.
+  public synchronized void replace(
+      List<Article> articles, String tagFilter, Instant cursor, Instant refreshed) {
+    transaction(
+        () -> {
+          try (Statement stmt = conn.createStatement()) {
+            stmt.execute("DELETE FROM articles");
+          }
+          upsert(articles);
+          setState(TAG_FILTER_KEY, tagFilter);
+          setState(CURSOR_KEY, Long.toString(cursor.getEpochSecond()));
+          setState(REFRESHED_KEY, Long.toString(refreshed.getEpochSecond()));
+        });
+    LOG.debug("Article catalog filled with {} article(s).", articles.size());
+  }
+
+  // Applies changes to the catalog. Added articles are expected in newest first order.
+  public synchronized void apply(List<Article> added, Collection<String> removed, Instant cursor) {
+    transaction(
+        () -> {
+          upsert(added);
+          delete(removed);
+          setState(CURSOR_KEY, Long.toString(cursor.getEpochSecond()));
+        });
+    LOG.debug(
+        "Applied {} added and {} removed article(s) to the article catalog.",
+        added.size(),
+        removed.size());
+  }
+
+  public synchronized void remove(Collection<String> ids) {
+    transaction(() -> delete(ids));
+  }
+
+  // Returns the articles in the catalog, newest first.
+  public synchronized List<Article> articles() {
+    String sql = "SELECT id, url, title FROM articles ORDER BY seq DESC";
+    List<Article> articles = new ArrayList<>();
+    try (Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery(sql)) {
+      while (rs.next()) {
+        articles.add(new Article(rs.getString("id"), rs.getString("url"), rs.getString("title")));
+      }
+    } catch (SQLException e) {
+      LOG.error("Error reading article catalog", e);
+    }
+    return articles;
+  }
+
+  private void upsert(List<Article> articles) throws SQLException {
+    // Insert the oldest article first so newer articles get a higher sequence number. Existing
+    // articles keep their position.
+    String sql =
+        "INSERT INTO articles(id, url, title, seq) "
+            + "VALUES(?, ?, ?, (SELECT COALESCE(MAX(seq), 0) + 1 FROM articles)) "
+            + "ON CONFLICT(id) DO UPDATE SET url = excluded.url, title = excluded.title";
+    try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+      for (Article article : Lists.reverse(articles)) {
+        pstmt.setString(1, article.id());
+        pstmt.setString(2, article.url());
+        pstmt.setString(3, article.title());
+        pstmt.addBatch();
+      }
+      pstmt.executeBatch();
+    }
+  }
+
+  private void delete(Collection<String> ids) throws SQLException {
+    try (PreparedStatement pstmt = conn.prepareStatement("DELETE FROM articles WHERE id = ?")) {
+      for (String id : ids) {
+        pstmt.setString(1, id);
+        pstmt.addBatch();
+      }
+      pstmt.executeBatch();
+    }
+  }
+
+  private String getState(String key) {
+    try (PreparedStatement pstmt =
+        conn.prepareStatement("SELECT value FROM catalog_state WHERE key = ?")) {
+      pstmt.setString(1, key);
+      ResultSet rs = pstmt.executeQuery();
+      return rs.next() ? rs.getString(1) : null;
+    } catch (SQLException e) {
+      LOG.error("Error reading article catalog state", e);
+      return null;
+    }
+  }
+
+  private void setState(String key, String value) throws SQLException {
+    try (PreparedStatement pstmt =
+        conn.prepareStatement("INSERT OR REPLACE INTO catalog_state(key, value) VALUES(?, ?)")) {
+      pstmt.setString(1, key);
+      pstmt.setString(2, value);
+      pstmt.executeUpdate();
+    }
+  }
+
+  private void transaction(SqlAction action) {
+    try {
+      conn.setAutoCommit(false);
+      try {
+        action.run();
+        conn.commit();
+      } catch (SQLException e) {
+        conn.rollback();
+        throw e;
+      } finally {
+        conn.setAutoCommit(true);
+      }
+    } catch (SQLException e) {
+      LOG.error("Error updating article catalog", e);
+    }
+  }
+
+  @PreDestroy
+  public synchronized void close() {
+    try {
+      if (conn != null) {
+        conn.close();
+        conn = null;
+        LOG.debug("Article catalog connection closed");
+      }
+    } catch (SQLException e) {
+      LOG.error("Error closing article catalog connection", e);
+    }
+  }
+
+  @FunctionalInterface
+  private interface SqlAction {
+    void run() throws SQLException;
+  }
+}
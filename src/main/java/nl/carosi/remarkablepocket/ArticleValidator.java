@@ -1,26 +1,54 @@
 package nl.carosi.remarkablepocket;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import jakarta.annotation.PreDestroy;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 
+// Invalid articles are kept in memory, so validity checks never touch the database. Newly
+// invalidated articles are written to the database in batches by a background thread, and by the
+// shutdown hook, see flushAll.
 public class ArticleValidator {
   private static final Logger LOG = LoggerFactory.getLogger(ArticleValidator.class);
   private static final String DB_NAME = "validator.db";
+  private static final long FLUSH_INTERVAL_SECONDS = 1;
+  private static final Set<ArticleValidator> OPEN = ConcurrentHashMap.newKeySet();
   private final Path dbPath;
+  private final SyncMetrics metrics;
+  private final Set<String> invalid = ConcurrentHashMap.newKeySet();
+  private final BlockingQueue<String> pending = new LinkedBlockingQueue<>();
+  private final ScheduledExecutorService flusher =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder()
+              .setNameFormat("article-validator-flush")
+              .setDaemon(true)
+              .build());
   private Connection conn;
 
-  public ArticleValidator(@Value("${config.dir}") Path configDir) {
+  public ArticleValidator(@Value("${config.dir}") Path configDir, SyncMetrics metrics) {
     this.dbPath = configDir.resolve(DB_NAME);
+    this.metrics = metrics;
     initializeDatabase();
+    OPEN.add(this);
+    flusher.scheduleWithFixedDelay(
+        this::flush, FLUSH_INTERVAL_SECONDS, FLUSH_INTERVAL_SECONDS, TimeUnit.SECONDS);
   }
 
-  private void initializeDatabase() {
+  private synchronized void initializeDatabase() {
     try {
       Files.createDirectories(dbPath.getParent());
       String url = "jdbc:sqlite:" + dbPath;
@@ -29,45 +57,84 @@ public class ArticleValidator {
       String sql =
           "CREATE TABLE IF NOT EXISTS invalid_articles (" + "article_name TEXT PRIMARY KEY)";
       try (Statement stmt = conn.createStatement()) {
+        stmt.execute("PRAGMA journal_mode=WAL");
         stmt.execute(sql);
+        try (ResultSet rs = stmt.executeQuery("SELECT article_name FROM invalid_articles")) {
+          while (rs.next()) {
+            invalid.add(rs.getString("article_name"));
+          }
+        }
       }
-      LOG.debug("Database initialized at: {}", dbPath);
+      LOG.debug("Database initialized at: {} with {} invalid article(s)", dbPath, invalid.size());
     } catch (SQLException | IOException e) {
       LOG.error("Error initializing database", e);
     }
   }
 
   public void invalidate(String articleName) {
-    String sql = "INSERT OR IGNORE INTO invalid_articles(article_name) VALUES(?)";
-    try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-      pstmt.setString(1, articleName);
-      pstmt.executeUpdate();
+    if (invalid.add(articleName)) {
+      pending.add(articleName);
+      metrics.invalidated();
       LOG.debug("Invalidated article: {}", articleName);
-    } catch (SQLException e) {
-      LOG.error("Error invalidating article", e);
     }
   }
 
   public boolean isValid(String articleName) {
-    if (articleName.isEmpty()) {
-      return false;
+    return !articleName.isEmpty() && !invalid.contains(articleName);
+  }
+
+  // Writes the pending articles of all open validators. The shutdown hook halts the JVM without
+  // closing the application contexts, so it calls this first.
+  static void flushAll() {
+    OPEN.forEach(ArticleValidator::flush);
+  }
+
+  // Writes the articles invalidated since the previous flush in a single transaction.
+  private synchronized void flush() {
+    List<String> batch = new ArrayList<>();
+    pending.drainTo(batch);
+    if (batch.isEmpty() || conn == null) {
+      return;
     }
 
-    String sql = "SELECT COUNT(*) FROM invalid_articles WHERE article_name = ?";
+    String sql = "INSERT OR IGNORE INTO invalid_articles(article_name) VALUES(?)";
     try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-      pstmt.setString(1, articleName);
-      ResultSet rs = pstmt.executeQuery();
-      if (rs.next()) {
-        return rs.getInt(1) == 0;
+      conn.setAutoCommit(false);
+      for (String articleName : batch) {
+        pstmt.setString(1, articleName);
+        pstmt.addBatch();
+      }
+      pstmt.executeBatch();
+      conn.commit();
+      LOG.debug("Stored {} invalidated article(s)", batch.size());
+    } catch (SQLException e) {
+      LOG.error("Error storing invalidated articles", e);
+      rollback();
+      // Retry in the next flush.
+      pending.addAll(batch);
+      metrics.retried("validator-flush");
+    } finally {
+      try {
+        conn.setAutoCommit(true);
+      } catch (SQLException e) {
+        LOG.error("Error restoring auto-commit", e);
       }
+    }
+  }
+
+  private void rollback() {
+    try {
+      conn.rollback();
     } catch (SQLException e) {
-      LOG.error("Error checking article validity", e);
+      LOG.error("Error rolling back transaction", e);
     }
-    return false;
   }
 
   @PreDestroy
-  public void close() {
+  public synchronized void close() {
+    OPEN.remove(this);
+    flusher.shutdownNow();
+    flush();
     try {
       if (conn != null) {
         conn.close();
@@ -80,17 +147,8 @@ public class ArticleValidator {
   }
 
   public void logInvalidArticles() {
-    String sql = "SELECT article_name FROM invalid_articles";
-    try (Statement stmt = conn.createStatement();
-        ResultSet rs = stmt.executeQuery(sql)) {
-
-      StringBuilder sb = new StringBuilder("Invalid articles:\n");
-      while (rs.next()) {
-        sb.append("- ").append(rs.getString("article_name")).append("\n");
-      }
-      LOG.debug(sb.toString());
-    } catch (SQLException e) {
-      LOG.error("Error logging invalid articles", e);
-    }
+    StringBuilder sb = new StringBuilder("Invalid articles:\n");
+    invalid.stream().sorted().forEach(name -> sb.append("- ").append(name).append("\n"));
+    LOG.debug(sb.toString());
   }
 }
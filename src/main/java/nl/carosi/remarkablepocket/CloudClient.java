@@ -0,0 +1,640 @@
+package nl.carosi.remarkablepocket;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
+import jakarta.annotation.PostConstruct;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import nl.carosi.remarkablepocket.model.Document;
+import nl.carosi.remarkablepocket.model.RemarkableEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// A native client for the Remarkable Cloud's sync 1.5 protocol, in which all documents form a
+// hash tree of immutable blobs. Parsed indexes and metadata are cached by hash, so only the parts
+// of the tree that changed since the previous call are retrieved. In a session the tree is only
+// retrieved once. Document files are streamed and never held in memory.
+final class CloudClient implements RemarkableClient {
+  private static final Logger LOG = LoggerFactory.getLogger(CloudClient.class);
+  private static final String AUTH_FILE = ".remarkable-auth";
+  private static final String DEVICE_TOKEN_PROPERTY = "device.token";
+  private static final String CONNECT_URL = "https://my.remarkable.com/device/desktop/connect";
+  private static final String DOCUMENT_TYPE = "DocumentType";
+  private static final String COLLECTION_TYPE = "CollectionType";
+  private static final String TRASH = "trash";
+  private static final String ROOT_INDEX_NAME = "root.docSchema";
+  private static final String METADATA_SUFFIX = ".metadata";
+
+  private final HttpClient http =
+      HttpClient.newBuilder()
+          .connectTimeout(Duration.ofSeconds(30))
+          .followRedirects(HttpClient.Redirect.NORMAL)
+          .build();
+  private final Map<String, CloudIndex> indexCache = new ConcurrentHashMap<>();
+  private final Map<String, Metadata> metadataCache = new ConcurrentHashMap<>();
+  private final ObjectMapper objectMapper;
+  private final String rmStorageDir;
+  private final Path authFile;
+  private final boolean useSession;
+  private final String cloudUrl;
+  private final String authUrl;
+  private final WorkingStorage storage;
+  private final SyncMetrics metrics;
+  private volatile String userToken;
+  private Tree tree;
+  private boolean inSession;
+
+  CloudClient(
+      ObjectMapper objectMapper,
+      String rmStorageDir,
+      String configDir,
+      boolean useSession,
+      String cloudUrl,
+      String authUrl,
+      WorkingStorage storage,
+      SyncMetrics metrics) {
+    this.objectMapper = objectMapper;
+    this.rmStorageDir = rmStorageDir;
+    this.authFile = Path.of(configDir, AUTH_FILE);
+    this.useSession = useSession;
+    this.cloudUrl = cloudUrl;
+    this.authUrl = authUrl;
+    this.storage = storage;
+    this.metrics = metrics;
+  }
+
+  @PostConstruct
+  public void login() {
+    try {
+      Optional<String> storedToken = loadDeviceToken();
+      String deviceToken = storedToken.isPresent() ? storedToken.get() : registerDevice();
+      renewUserToken(deviceToken);
+    } catch (IOException | RuntimeException e) {
+      throw new RuntimeException("Could not connect to Remarkable Cloud", e);
+    }
+  }
+
+  private Optional<String> loadDeviceToken() throws IOException {
+    if (!Files.exists(authFile)) {
+      return Optional.empty();
+    }
+    Properties properties = new Properties();
+    try (InputStream authStream = Files.newInputStream(authFile)) {
+      properties.load(authStream);
+    }
+    return Optional.ofNullable(properties.getProperty(DEVICE_TOKEN_PROPERTY));
+  }
+
+  private String registerDevice() throws IOException {
+    LOG.info("Enter one-time code (go to {}):", CONNECT_URL);
+    String code = new BufferedReader(new InputStreamReader(System.in, UTF_8)).readLine();
+    if (code == null || code.isBlank()) {
+      throw new IllegalStateException("No one-time code entered");
+    }
+    byte[] body =
+        objectMapper.writeValueAsBytes(
+            Map.of(
+                "code", code.strip(),
+                "deviceDesc", "desktop-linux",
+                "deviceID", UUID.randomUUID().toString()));
+    String deviceToken =
+        sendAuth(
+            HttpRequest.newBuilder(URI.create(authUrl + "/token/json/2/device/new"))
+                .POST(BodyPublishers.ofByteArray(body)));
+
+    Properties properties = new Properties();
+    properties.setProperty(DEVICE_TOKEN_PROPERTY, deviceToken);
+    try (OutputStream authStream = Files.newOutputStream(authFile)) {
+      properties.store(authStream, null);
+    }
+    return deviceToken;
+  }
+
+  private void renewUserToken(String deviceToken) {
+    userToken =
+        sendAuth(
+            HttpRequest.newBuilder(URI.create(authUrl + "/token/json/2/user/new"))
+                .header("Authorization", "Bearer " + deviceToken)
+                .POST(BodyPublishers.noBody()));
+    LOG.debug("Renewed Remarkable Cloud user token.");
+  }
+
+  private String sendAuth(HttpRequest.Builder request) {
+    HttpResponse<String> res = sendOnce(request.build(), BodyHandlers.ofString());
+    if (res.statusCode() != 200) {
+      throw new RuntimeException("Remarkable Cloud authentication failed: " + res.statusCode());
+    }
+    return res.body().strip();
+  }
+
+  @Override
+  public synchronized void openSession() {
+    inSession = useSession;
+  }
+
+  @Override
+  public synchronized void closeSession() {
+    inSession = false;
+  }
+
+  // Operations are timed under the names of the equivalent rmapi commands.
+  @Override
+  public List<RemarkableEntry> list() {
+    return metrics.timeCommand("ls", this::listEntries);
+  }
+
+  private synchronized List<RemarkableEntry> listEntries() {
+    Tree current = tree();
+    String dirId = dirId(current, rmStorageDir);
+    return current.docs().values().stream()
+        .filter(e -> isLive(e) && dirId.equals(parentOf(e)))
+        .map(
+            e ->
+                new RemarkableEntry(
+                    COLLECTION_TYPE.equals(e.metadata().type())
+                        ? RemarkableEntry.Type.DIRECTORY
+                        : RemarkableEntry.Type.DOCUMENT,
+                    e.metadata().visibleName(),
+                    e.entry().id()))
+        .sorted(Comparator.comparing(RemarkableEntry::name))
+        .toList();
+  }
+
+  @Override
+  public Document info(String articleName) {
+    return metrics.timeCommand("stat", () -> stat(articleName));
+  }
+
+  private Document stat(String articleName) {
+    Doc doc = find(articleName);
+    Metadata meta = doc.metadata();
+    return new Document(
+        meta.lastOpenedPage(), articleName, doc.entry().id(), meta.version(), meta.lastModified());
+  }
+
+  @Override
+  public DocumentBundle download(String articleName) {
+    return metrics.timeCommand("get", () -> downloadDocument(articleName));
+  }
+
+  private DocumentBundle downloadDocument(String articleName) {
+    Doc doc = find(articleName);
+    // Entries are sorted by name, so the document's own files come before its subdirectories.
+    try {
+      return storage.write(
+          bundle -> {
+            try (ZipOutputStream out = new ZipOutputStream(bundle)) {
+              for (CloudIndex.Entry file : doc.files().entries()) {
+                out.putNextEntry(new ZipEntry(file.id()));
+                try (InputStream in = openBlob(file.hash())) {
+                  in.transferTo(out);
+                }
+                out.closeEntry();
+              }
+            }
+          });
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not download " + articleName, e);
+    }
+  }
+
+  @Override
+  public void upload(Path path) {
+    metrics.timeCommand("put", () -> uploadDocuments(List.of(path)));
+  }
+
+  @Override
+  public void uploadAll(List<Path> paths) {
+    metrics.timeCommand("mput", () -> uploadDocuments(paths));
+  }
+
+  // All documents are added to the tree in a single root update.
+  private synchronized Void uploadDocuments(List<Path> paths) {
+    String parent = dirId(tree(), rmStorageDir);
+    List<CloudIndex.Entry> added = new ArrayList<>();
+    for (Path path : paths) {
+      added.add(uploadDocument(path, parent));
+    }
+    updateRoot(entries -> added.forEach(e -> entries.put(e.id(), e)));
+    return null;
+  }
+
+  @Override
+  public void delete(String articleName) {
+    metrics.timeCommand("rm", () -> deleteDocument(articleName));
+  }
+
+  private synchronized Void deleteDocument(String articleName) {
+    String id = find(articleName).entry().id();
+    updateRoot(entries -> entries.remove(id));
+    return null;
+  }
+
+  @Override
+  public void createDir(String path) {
+    metrics.timeCommand("mkdir", () -> createCollections(path));
+  }
+
+  private synchronized Void createCollections(String path) {
+    Tree current = tree();
+    String parent = "";
+    boolean exists = true;
+    List<CloudIndex.Entry> added = new ArrayList<>();
+    for (String name : parts(path)) {
+      Optional<String> dir =
+          exists ? findCollection(current, parent, name) : Optional.<String>empty();
+      if (dir.isPresent()) {
+        parent = dir.get();
+      } else {
+        exists = false;
+        String id = UUID.randomUUID().toString();
+        added.add(
+            writeDocument(
+                id,
+                writeJson(id + ".content", Map.of()),
+                writeJson(id + METADATA_SUFFIX, metadata(name, COLLECTION_TYPE, parent))));
+        parent = id;
+      }
+    }
+    if (!added.isEmpty()) {
+      updateRoot(entries -> added.forEach(e -> entries.put(e.id(), e)));
+    }
+    return null;
+  }
+
+  private CloudIndex.Entry uploadDocument(Path path, String parent) {
+    String id = UUID.randomUUID().toString();
+    String fileType = MoreFiles.getFileExtension(path);
+    LOG.debug("Uploading {} as {}.", path, id);
+    try {
+      // The file is read twice, once to hash it and once to upload it, so it's never in memory.
+      String hash = MoreFiles.asByteSource(path).hash(Hashing.sha256()).toString();
+      String name = id + "." + fileType;
+      putBlob(hash, name, BodyPublishers.ofFile(path));
+      CloudIndex.Entry file = CloudIndex.Entry.file(hash, name, Files.size(path));
+      return writeDocument(
+          id,
+          writeJson(id + ".content", Map.of("fileType", fileType)),
+          writeJson(
+              id + METADATA_SUFFIX,
+              metadata(MoreFiles.getNameWithoutExtension(path), DOCUMENT_TYPE, parent)),
+          file);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not upload " + path, e);
+    }
+  }
+
+  private CloudIndex.Entry writeDocument(String id, CloudIndex.Entry... files) {
+    CloudIndex index = new CloudIndex(Arrays.asList(files));
+    putBlob(index.hash(), id + ".docSchema", BodyPublishers.ofByteArray(index.serialize()));
+    indexCache.put(index.hash(), index);
+    return index.toDocumentEntry(id);
+  }
+
+  private CloudIndex.Entry writeJson(String name, Map<String, ?> value) {
+    try {
+      byte[] json = objectMapper.writeValueAsBytes(value);
+      String hash = CloudIndex.hash(json);
+      putBlob(hash, name, BodyPublishers.ofByteArray(json));
+      if (name.endsWith(METADATA_SUFFIX)) {
+        metadataCache.put(hash, objectMapper.readValue(json, Metadata.class));
+      }
+      return CloudIndex.Entry.file(hash, name, json.length);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static Map<String, Object> metadata(String name, String type, String parent) {
+    Map<String, Object> metadata = new LinkedHashMap<>();
+    metadata.put("visibleName", name);
+    metadata.put("type", type);
+    metadata.put("parent", parent);
+    metadata.put("lastModified", Long.toString(Instant.now().toEpochMilli()));
+    metadata.put("version", 0);
+    metadata.put("deleted", false);
+    metadata.put("pinned", false);
+    return metadata;
+  }
+
+  // Writes a new root index and points the root at it. If another client changed the root in the
+  // meantime, the change is applied again to the latest tree.
+  private void updateRoot(Consumer<Map<String, CloudIndex.Entry>> change) {
+    for (int attempt = 0; attempt < 2; attempt++) {
+      Tree current = tree();
+      Map<String, CloudIndex.Entry> entries = new HashMap<>();
+      current.entries().forEach(e -> entries.put(e.id(), e));
+      change.accept(entries);
+
+      CloudIndex root = new CloudIndex(new ArrayList<>(entries.values()));
+      putBlob(root.hash(), ROOT_INDEX_NAME, BodyPublishers.ofByteArray(root.serialize()));
+      indexCache.put(root.hash(), root);
+      Optional<Root> updated = putRoot(new Root(root.hash(), current.generation()));
+      if (updated.isPresent()) {
+        tree = loadTree(updated.get());
+        return;
+      }
+      LOG.debug("Remarkable Cloud was modified concurrently. Retrying with the latest state.");
+      metrics.retried("root-update");
+      tree = null;
+    }
+    throw new RuntimeException("Remarkable Cloud was modified concurrently");
+  }
+
+  // Returns the latest tree. In a session the tree is only retrieved once.
+  private synchronized Tree tree() {
+    if (tree != null && inSession) {
+      return tree;
+    }
+    Root root = getRoot();
+    if (tree == null || !tree.hash().equals(root.hash())) {
+      tree = loadTree(root);
+    }
+    return tree;
+  }
+
+  private Tree loadTree(Root root) {
+    CloudIndex rootIndex = index(root.hash());
+    List<CloudIndex.Entry> entries = rootIndex.entries();
+    fetchAll(entries.stream().map(CloudIndex.Entry::hash).toList(), indexCache, CloudIndex::parse);
+
+    Map<String, CloudIndex.Entry> metadataFiles = new HashMap<>();
+    for (CloudIndex.Entry entry : entries) {
+      index(entry.hash()).entries().stream()
+          .filter(e -> e.id().endsWith(METADATA_SUFFIX))
+          .findFirst()
+          .ifPresent(e -> metadataFiles.put(entry.id(), e));
+    }
+    fetchAll(
+        metadataFiles.values().stream().map(CloudIndex.Entry::hash).toList(),
+        metadataCache,
+        this::parseMetadata);
+
+    Map<String, Doc> docs = new HashMap<>();
+    for (CloudIndex.Entry entry : entries) {
+      CloudIndex.Entry metadataFile = metadataFiles.get(entry.id());
+      if (metadataFile == null) {
+        LOG.debug("Skipping document without metadata: {}.", entry.id());
+        continue;
+      }
+      docs.put(
+          entry.id(), new Doc(entry, index(entry.hash()), metadataCache.get(metadataFile.hash())));
+    }
+    LOG.debug("Loaded Remarkable Cloud tree {} with {} document(s).", root.hash(), docs.size());
+    return new Tree(root.hash(), root.generation(), entries, docs);
+  }
+
+  // The blob is retrieved outside the cache, so the request doesn't block other cache updates.
+  private CloudIndex index(String hash) {
+    CloudIndex cached = indexCache.get(hash);
+    if (cached != null) {
+      return cached;
+    }
+    CloudIndex index = CloudIndex.parse(getBlob(hash));
+    CloudIndex concurrent = indexCache.putIfAbsent(hash, index);
+    return concurrent != null ? concurrent : index;
+  }
+
+  private Metadata parseMetadata(byte[] json) {
+    try {
+      return objectMapper.readValue(json, Metadata.class);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Invalid document metadata", e);
+    }
+  }
+
+  // Retrieves the blobs that are not cached yet concurrently, over the shared client's pool.
+  private <T> void fetchAll(
+      List<String> hashes, Map<String, T> cache, java.util.function.Function<byte[], T> parser) {
+    Map<String, CompletableFuture<HttpResponse<byte[]>>> pending = new HashMap<>();
+    for (String hash : hashes) {
+      if (!cache.containsKey(hash) && !pending.containsKey(hash)) {
+        pending.put(
+            hash, http.sendAsync(authorized(blobRequest(hash).GET()), BodyHandlers.ofByteArray()));
+      }
+    }
+    pending.forEach(
+        (hash, future) -> {
+          HttpResponse<byte[]> res = future.join();
+          // Retry individually, which renews the token if it expired.
+          byte[] blob = res.statusCode() == 200 ? res.body() : getBlob(hash);
+          cache.put(hash, parser.apply(blob));
+        });
+  }
+
+  private synchronized Doc find(String articleName) {
+    Tree current = tree();
+    String dirId = dirId(current, rmStorageDir);
+    return current.docs().values().stream()
+        .filter(
+            e ->
+                isLive(e)
+                    && DOCUMENT_TYPE.equals(e.metadata().type())
+                    && dirId.equals(parentOf(e))
+                    && articleName.equals(e.metadata().visibleName()))
+        .findFirst()
+        .orElseThrow(() -> new RuntimeException("Document not found: " + articleName));
+  }
+
+  private String dirId(Tree current, String path) {
+    String parent = "";
+    for (String name : parts(path)) {
+      parent =
+          findCollection(current, parent, name)
+              .orElseThrow(() -> new RuntimeException("Directory not found: " + path));
+    }
+    return parent;
+  }
+
+  private static Optional<String> findCollection(Tree current, String parent, String name) {
+    return current.docs().values().stream()
+        .filter(
+            e ->
+                isLive(e)
+                    && COLLECTION_TYPE.equals(e.metadata().type())
+                    && parent.equals(parentOf(e))
+                    && name.equals(e.metadata().visibleName()))
+        .map(e -> e.entry().id())
+        .findFirst();
+  }
+
+  private static List<String> parts(String path) {
+    return Arrays.stream(path.split("/")).filter(e -> !e.isEmpty()).toList();
+  }
+
+  private static boolean isLive(Doc doc) {
+    return !doc.metadata().deleted() && !TRASH.equals(parentOf(doc));
+  }
+
+  private static String parentOf(Doc doc) {
+    return Strings.nullToEmpty(doc.metadata().parent());
+  }
+
+  private Root getRoot() {
+    HttpResponse<byte[]> res =
+        send(
+            HttpRequest.newBuilder(URI.create(cloudUrl + "/sync/v4/root")).GET(),
+            BodyHandlers.ofByteArray());
+    checkStatus(res, "retrieve root");
+    try {
+      return objectMapper.readValue(res.body(), Root.class);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Invalid root", e);
+    }
+  }
+
+  // Returns empty if the root's generation doesn't match, i.e. it was modified concurrently.
+  private Optional<Root> putRoot(Root root) {
+    try {
+      Map<String, Object> body =
+          Map.of("hash", root.hash(), "generation", root.generation(), "broadcast", true);
+      HttpResponse<byte[]> res =
+          send(
+              HttpRequest.newBuilder(URI.create(cloudUrl + "/sync/v4/root"))
+                  .PUT(BodyPublishers.ofByteArray(objectMapper.writeValueAsBytes(body))),
+              BodyHandlers.ofByteArray());
+      if (res.statusCode() == 412) {
+        return Optional.empty();
+      }
+      checkStatus(res, "update root");
+      return Optional.of(objectMapper.readValue(res.body(), Root.class));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private byte[] getBlob(String hash) {
+    HttpResponse<byte[]> res = send(blobRequest(hash).GET(), BodyHandlers.ofByteArray());
+    checkStatus(res, "retrieve " + hash);
+    return res.body();
+  }
+
+  private InputStream openBlob(String hash) throws IOException {
+    HttpResponse<InputStream> res = send(blobRequest(hash).GET(), BodyHandlers.ofInputStream());
+    if (res.statusCode() != 200) {
+      res.body().close();
+      checkStatus(res, "retrieve " + hash);
+    }
+    return res.body();
+  }
+
+  private void putBlob(String hash, String name, BodyPublisher body) {
+    HttpResponse<byte[]> res =
+        send(
+            blobRequest(hash)
+                .header("rm-filename", name)
+                .header("Content-Type", "application/octet-stream")
+                .PUT(body),
+            BodyHandlers.ofByteArray());
+    checkStatus(res, "upload " + name);
+  }
+
+  private HttpRequest.Builder blobRequest(String hash) {
+    return HttpRequest.newBuilder(URI.create(cloudUrl + "/sync/v3/files/" + hash));
+  }
+
+  private HttpRequest authorized(HttpRequest.Builder request) {
+    return request.copy().header("Authorization", "Bearer " + userToken).build();
+  }
+
+  // Renews the user token and retries once if it expired.
+  private <T> HttpResponse<T> send(HttpRequest.Builder request, BodyHandler<T> handler) {
+    HttpResponse<T> res = sendOnce(authorized(request), handler);
+    if (res.statusCode() == 401) {
+      LOG.debug("Remarkable Cloud user token expired.");
+      discard(res);
+      metrics.retried("token-renewal");
+      try {
+        renewUserToken(loadDeviceToken().orElseThrow());
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      res = sendOnce(authorized(request), handler);
+    }
+    return res;
+  }
+
+  // A streamed body holds on to its connection until it is closed.
+  private static void discard(HttpResponse<?> res) {
+    if (res.body() instanceof InputStream body) {
+      try {
+        body.close();
+      } catch (IOException e) {
+        LOG.debug("Could not close response body.", e);
+      }
+    }
+  }
+
+  private <T> HttpResponse<T> sendOnce(HttpRequest request, BodyHandler<T> handler) {
+    LOG.trace("{} {}", request.method(), request.uri());
+    try {
+      return http.send(request, handler);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not reach Remarkable Cloud", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while contacting Remarkable Cloud", e);
+    }
+  }
+
+  private static void checkStatus(HttpResponse<?> res, String action) {
+    if (res.statusCode() / 100 != 2) {
+      throw new RuntimeException(
+          "Could not " + action + " on Remarkable Cloud: HTTP " + res.statusCode());
+    }
+  }
+
+  private record Tree(
+      String hash, long generation, List<CloudIndex.Entry> entries, Map<String, Doc> docs) {}
+
+  private record Doc(CloudIndex.Entry entry, CloudIndex files, Metadata metadata) {}
+
+  @JsonIgnoreProperties(ignoreUnknown = true)
+  private record Root(String hash, long generation) {}
+
+  @JsonIgnoreProperties(ignoreUnknown = true)
+  private record Metadata(
+      String visibleName,
+      String type,
+      String parent,
+      String lastModified,
+      int version,
+      boolean deleted,
+      int lastOpenedPage) {}
+}
@@ -0,0 +1,87 @@
+package nl.carosi.remarkablepocket;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+// An index file of the Remarkable Cloud's sync 1.5 hash tree. The root index lists a document
+// entry per document, and each document's index lists a file entry per file. Entries are lines of
+// the form 'hash:type:id:subfiles:size', preceded by the schema version.
+record CloudIndex(List<Entry> entries) {
+  static final String SCHEMA_VERSION = "3";
+  static final String DOCUMENT_TYPE = "80000000";
+  static final String FILE_TYPE = "0";
+
+  CloudIndex {
+    entries = entries.stream().sorted(Comparator.comparing(Entry::id)).toList();
+  }
+
+  static CloudIndex parse(byte[] index) {
+    String[] lines = new String(index, UTF_8).split("\n");
+    if (lines.length == 0 || !lines[0].equals(SCHEMA_VERSION)) {
+      throw new IllegalArgumentException("Unsupported index schema: " + lines[0]);
+    }
+    List<Entry> entries = new ArrayList<>();
+    for (int i = 1; i < lines.length; i++) {
+      if (lines[i].isBlank()) {
+        continue;
+      }
+      String[] parts = lines[i].split(":");
+      if (parts.length != 5) {
+        throw new IllegalArgumentException("Invalid index entry: " + lines[i]);
+      }
+      entries.add(
+          new Entry(
+              parts[0], parts[1], parts[2], Integer.parseInt(parts[3]), Long.parseLong(parts[4])));
+    }
+    return new CloudIndex(entries);
+  }
+
+  static String hash(byte[] data) {
+    return Hashing.sha256().hashBytes(data).toString();
+  }
+
+  byte[] serialize() {
+    StringBuilder sb = new StringBuilder(SCHEMA_VERSION).append('\n');
+    for (Entry entry : entries) {
+      sb.append(entry.hash())
+          .append(':')
+          .append(entry.type())
+          .append(':')
+          .append(entry.id())
+          .append(':')
+          .append(entry.subfiles())
+          .append(':')
+          .append(entry.size())
+          .append('\n');
+    }
+    return sb.toString().getBytes(UTF_8);
+  }
+
+  // The hash of an index is the hash of its entries' hashes, in entry order.
+  String hash() {
+    Hasher hasher = Hashing.sha256().newHasher();
+    entries.forEach(e -> hasher.putBytes(HashCode.fromString(e.hash()).asBytes()));
+    return hasher.hash().toString();
+  }
+
+  long size() {
+    return entries.stream().mapToLong(Entry::size).sum();
+  }
+
+  // The entry that refers to this index from the root index.
+  Entry toDocumentEntry(String documentId) {
+    return new Entry(hash(), DOCUMENT_TYPE, documentId, entries.size(), size());
+  }
+
+  record Entry(String hash, String type, String id, int subfiles, long size) {
+    static Entry file(String hash, String id, long size) {
+      return new Entry(hash, FILE_TYPE, id, 0, size);
+    }
+  }
+}
@@ -0,0 +1,164 @@
+package nl.carosi.remarkablepocket;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static nl.carosi.remarkablepocket.SyncService.humanReadable;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Runs external commands, i.e. rmapi. The output and error streams of a command are drained
+// concurrently on a shared pool, so a command can't block on a full pipe while the other stream is
+// read. A command that doesn't finish before the deadline is killed, and a command that exits with
+// a non-zero status fails. Commands may run concurrently.
+final class CommandExecutor {
+  private static final Logger LOG = LoggerFactory.getLogger(CommandExecutor.class);
+  private static final Pattern LINES = Pattern.compile("\\r?\\n");
+  // How long a process gets to exit after it was asked to, and to close its streams after exiting.
+  private static final long GRACE_SECONDS = 5;
+
+  private final Duration timeout;
+  private final ExecutorService streams =
+      Executors.newCachedThreadPool(
+          new ThreadFactoryBuilder().setNameFormat("command-io-%d").setDaemon(true).build());
+
+  CommandExecutor(Duration timeout) {
+    checkArgument(!timeout.isNegative() && !timeout.isZero(), "Command timeout must be positive.");
+    this.timeout = timeout;
+  }
+
+  // Returns the output lines of the command. Its error lines are passed to the consumer.
+  List<String> exec(ProcessBuilder builder, Consumer<String> stderr) {
+    List<String> stdout = new ArrayList<>();
+    int exitCode = run(builder, LINES, stdout::add, stderr, true);
+    if (exitCode != 0) {
+      throw new IllegalStateException(
+          "Command failed with exit status %d: %s".formatted(exitCode, builder.command()));
+    }
+    return stdout;
+  }
+
+  // Runs an interactive command without a deadline, e.g. one that asks for a one-time code, and
+  // returns its exit status. The tokens of both streams are passed to the consumers as they come.
+  int interact(
+      ProcessBuilder builder, Pattern delimiter, Consumer<String> stdout, Consumer<String> stderr) {
+    return run(builder, delimiter, stdout, stderr, false);
+  }
+
+  private int run(
+      ProcessBuilder builder,
+      Pattern delimiter,
+      Consumer<String> stdout,
+      Consumer<String> stderr,
+      boolean deadline) {
+    LOG.debug("Executing command: {}", builder.command());
+    Process process;
+    try {
+      process = builder.start();
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not execute command: " + builder.command(), e);
+    }
+    Future<?> out = streams.submit(() -> drain(process.getInputStream(), delimiter, stdout));
+    Future<?> err = streams.submit(() -> drain(process.getErrorStream(), delimiter, stderr));
+    try {
+      if (deadline) {
+        if (!process.waitFor(timeout.toMillis(), MILLISECONDS)) {
+          throw new IllegalStateException(
+              "Command timed out after %s and was killed (exit status %d): %s"
+                  .formatted(humanReadable(timeout), kill(process), builder.command()));
+        }
+      } else {
+        process.waitFor();
+      }
+      // The streams are at their end once the process has exited, unless a child inherited them.
+      out.get(GRACE_SECONDS, SECONDS);
+      err.get(GRACE_SECONDS, SECONDS);
+      return process.exitValue();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      kill(process);
+      throw new IllegalStateException("Interrupted while executing: " + builder.command(), e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException cause) {
+        throw new UncheckedIOException("Could not read the output of: " + builder.command(), cause);
+      }
+      throw new IllegalStateException("Could not process the output of: " + builder.command(), e);
+    } catch (TimeoutException e) {
+      throw new IllegalStateException("Command didn't close its output: " + builder.command(), e);
+    } finally {
+      out.cancel(true);
+      err.cancel(true);
+    }
+  }
+
+  // Runs I/O with a process that keeps running, e.g. a command of an rmapi session. When the I/O
+  // doesn't complete before the deadline, the process is killed, which also ends the I/O.
+  <T> T withDeadline(Process process, String description, Callable<T> io) {
+    Future<T> result = streams.submit(io);
+    try {
+      return result.get(timeout.toMillis(), MILLISECONDS);
+    } catch (TimeoutException e) {
+      throw new IllegalStateException(
+          "%s timed out after %s and was killed (exit status %d)"
+              .formatted(description, humanReadable(timeout), kill(process)));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      kill(process);
+      throw new IllegalStateException("Interrupted while executing: " + description, e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      }
+      throw new IllegalStateException(description + " failed", e.getCause());
+    } finally {
+      result.cancel(true);
+    }
+  }
+
+  // Asks the process to exit and kills it when it doesn't. Returns its exit status.
+  static int kill(Process process) {
+    process.destroy();
+    try {
+      if (!process.waitFor(GRACE_SECONDS, SECONDS)) {
+        LOG.debug("Process {} didn't exit, killing it forcibly.", process.pid());
+        process.destroyForcibly().waitFor(GRACE_SECONDS, SECONDS);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      process.destroyForcibly();
+    }
+    return process.isAlive() ? -1 : process.exitValue();
+  }
+
+  private static Void drain(InputStream stream, Pattern delimiter, Consumer<String> consumer)
+      throws IOException {
+    try (Scanner scanner = new Scanner(stream, UTF_8)) {
+      scanner.useDelimiter(delimiter);
+      while (scanner.hasNext()) {
+        consumer.accept(scanner.next());
+      }
+      if (scanner.ioException() != null) {
+        throw scanner.ioException();
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,145 @@
+package nl.carosi.remarkablepocket;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// A zip archive in the working storage, e.g. a document downloaded from the Remarkable Cloud or the
+// epub in it. Small bundles are kept in memory, larger ones are files. Entries are looked up in the
+// central directory, so only the entries that are read are inflated. Closing a bundle releases it,
+// which deletes its file. A bundle is used by a single thread.
+//
+// A bundle stored in another bundle without compression is read in place, see openNested.
+final class DocumentBundle implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(DocumentBundle.class);
+  private final ByteBuffer data;
+  private final Path file;
+  private final Runnable onClose;
+  private ZipFile zip;
+  private ByteBuffer mapped;
+
+  private DocumentBundle(ByteBuffer data, Path file, Runnable onClose) {
+    this.data = data;
+    this.file = file;
+    this.onClose = onClose;
+  }
+
+  static DocumentBundle inMemory(byte[] data) {
+    return new DocumentBundle(ByteBuffer.wrap(data), null, () -> {});
+  }
+
+  static DocumentBundle onDisk(Path file, Runnable onClose) {
+    return new DocumentBundle(null, file, onClose);
+  }
+
+  boolean isInMemory() {
+    return data != null;
+  }
+
+  String firstEntryName() throws IOException {
+    if (isInMemory()) {
+      try (ZipInputStream in = new ZipInputStream(ZipEntryLocator.stream(data))) {
+        ZipEntry first = in.getNextEntry();
+        if (first == null) {
+          throw new IOException("Document bundle is empty");
+        }
+        return first.getName();
+      }
+    }
+    return zip().stream()
+        .findFirst()
+        .orElseThrow(() -> new IOException("Document bundle is empty"))
+        .getName();
+  }
+
+  // Falls back to scanning the archive when its central directory can't be read.
+  InputStream open(String name) throws IOException {
+    Optional<InputStream> located = isInMemory() ? ZipEntryLocator.open(data, name) : locate(name);
+    if (located.isPresent()) {
+      return located.get();
+    }
+    LOG.debug("Could not locate {} using the central directory. Scanning the archive.", name);
+    return scan(name);
+  }
+
+  // Returns the bundle of an entry that is a zip archive itself, e.g. the epub in a document,
+  // without copying it. A file is mapped for this. Empty when the entry is compressed, in which
+  // case it has to be opened and inflated. The nested bundle is closed before this one.
+  Optional<DocumentBundle> openNested(String name) throws IOException {
+    ByteBuffer buffer = isInMemory() ? data : map();
+    if (buffer == null) {
+      return Optional.empty();
+    }
+    return ZipEntryLocator.stored(buffer, name)
+        .map(nested -> new DocumentBundle(nested, null, () -> {}));
+  }
+
+  // Returns null when the file is too large to be mapped at once.
+  private ByteBuffer map() throws IOException {
+    if (mapped == null) {
+      try (FileChannel channel = FileChannel.open(file)) {
+        if (channel.size() > Integer.MAX_VALUE) {
+          return null;
+        }
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      }
+    }
+    return mapped;
+  }
+
+  private Optional<InputStream> locate(String name) throws IOException {
+    ZipFile zipFile;
+    try {
+      zipFile = zip();
+    } catch (ZipException e) {
+      return Optional.empty();
+    }
+    ZipEntry entry = zipFile.getEntry(name);
+    return entry == null ? Optional.empty() : Optional.of(zipFile.getInputStream(entry));
+  }
+
+  private InputStream scan(String name) throws IOException {
+    ZipInputStream in =
+        new ZipInputStream(
+            isInMemory()
+                ? ZipEntryLocator.stream(data)
+                : new BufferedInputStream(Files.newInputStream(file)));
+    for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+      if (entry.getName().equals(name)) {
+        return in;
+      }
+    }
+    in.close();
+    throw new IOException("Could not find " + name + " in document bundle");
+  }
+
+  private ZipFile zip() throws IOException {
+    if (zip == null) {
+      zip = new ZipFile(file.toFile());
+    }
+    return zip;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      if (zip != null) {
+        zip.close();
+      }
+    } finally {
+      onClose.run();
+    }
+  }
+}
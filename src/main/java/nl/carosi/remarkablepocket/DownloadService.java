@@ -1,71 +1,152 @@
 package nl.carosi.remarkablepocket;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import nl.carosi.remarkablepocket.model.Article;
+import nl.carosi.remarkablepocket.model.Download;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 
 final class DownloadService {
   private static final Logger LOG = LoggerFactory.getLogger(DownloadService.class);
 
   private final ArticleDownloader downloader;
   private final ArticleValidator validator;
+  private final WorkingStorage storage;
+  private final int workers;
+  private final ExecutorService executor;
   private Path storageDir;
 
-  DownloadService(ArticleDownloader downloader, ArticleValidator validator) {
+  DownloadService(
+      ArticleDownloader downloader,
+      ArticleValidator validator,
+      WorkingStorage storage,
+      @Value("${download.workers}") int workers) {
+    checkArgument(workers > 0, "Download workers must be at least 1.");
     this.downloader = downloader;
     this.validator = validator;
+    this.storage = storage;
+    this.workers = workers;
+    this.executor =
+        Executors.newFixedThreadPool(
+            workers,
+            new ThreadFactoryBuilder()
+                .setNameFormat("article-download-%d")
+                .setDaemon(true)
+                .build());
   }
 
   @PostConstruct
   void createStorageDir() throws IOException {
-    storageDir = Files.createTempDirectory(null);
-    LOG.debug("Created temporary storage directory: {}.", storageDir);
+    storageDir = storage.createDir("downloads");
+  }
+
+  @PreDestroy
+  void shutdown() {
+    executor.shutdownNow();
   }
 
-  @SuppressWarnings("UnstableApiUsage")
-  List<Path> download(List<Article> articles, int articleLimit, int nArticlesOnRm) {
+  // Candidates are consumed lazily, only when another download is needed.
+  List<Download> download(Iterator<Article> articles, int articleLimit, int nArticlesOnRm) {
     validator.logInvalidArticles();
     int limit = articleLimit - nArticlesOnRm;
-    int pocketCount = articles.size();
-    int total = Math.min(pocketCount, limit);
     LOG.info(
-        "Found {} unread article(s) on Remarkable. Downloading {} more from Pocket.",
+        "Found {} unread article(s) on Remarkable. Downloading up to {} more from Pocket.",
         nArticlesOnRm,
-        total);
-    AtomicInteger count = new AtomicInteger(1);
-    List<Path> downloads =
-        articles.stream()
-            .filter(article -> validator.isValid(article.title()))
-            .map(article -> tryDownload(article, count, total))
-            .flatMap(Optional::stream)
-            .limit(limit)
-            .toList();
-    if (downloads.size() < total) {
+        limit);
+    Iterator<Article> candidates =
+        Iterators.filter(articles, article -> validator.isValid(article.title()));
+    int count = 1;
+    BlockingQueue<CompletableFuture<Optional<Download>>> completed = new LinkedBlockingQueue<>();
+    List<CompletableFuture<Optional<Download>>> pending = new ArrayList<>();
+    List<Download> downloads = new ArrayList<>();
+    SyncTasks tasks = new SyncTasks(executor);
+    try {
+      while (downloads.size() < limit) {
+        // Never run more downloads than are still needed to reach the limit, so no books are
+        // generated that won't be uploaded. A failed download makes room for the next candidate.
+        // Pipelined downloads mostly wait on a remote service, so they aren't limited by workers.
+        int remaining = limit - downloads.size();
+        int inFlight = downloader.isPipelined() ? remaining : Math.min(workers, remaining);
+        while (pending.size() < inFlight && candidates.hasNext()) {
+          Article article = candidates.next();
+          LOG.info("({}/{}) Downloading: '{}'.", count++, limit, article.title());
+          CompletableFuture<Optional<Download>> download = startDownload(article, tasks);
+          pending.add(download);
+          download.whenComplete((path, e) -> completed.add(download));
+        }
+        if (pending.isEmpty()) {
+          break;
+        }
+        CompletableFuture<Optional<Download>> done = completed.take();
+        pending.remove(done);
+        done.join().ifPresent(downloads::add);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while downloading articles", e);
+    } finally {
+      // Running tasks can't be interrupted while they wait on the network. They finish, and their
+      // downloads are deleted once they complete, see startDownload. Later tasks are rejected.
+      tasks.close();
+      pending.forEach(future -> future.cancel(false));
+    }
+    if (downloads.size() < limit) {
       LOG.warn("No more articles on Pocket. Add some new ones!");
     }
     return downloads;
   }
 
-  private Optional<Path> tryDownload(Article article, AtomicInteger count, int total) {
+  private CompletableFuture<Optional<Download>> startDownload(Article article, Executor tasks) {
     String title = article.title();
-    LOG.info("({}/{}) Downloading: '{}'.", count.get(), total, title);
-    Optional<Path> path = downloader.tryDownload(article, storageDir);
-    if (path.isEmpty()) {
-      validator.invalidate(title);
-    } else {
-      LOG.info("Download successful.");
-      count.incrementAndGet();
+    CompletableFuture<Optional<Path>> result = downloader.tryDownload(article, storageDir, tasks);
+    CompletableFuture<Optional<Download>> download =
+        result.thenApply(
+            path -> {
+              if (path.isEmpty()) {
+                validator.invalidate(title);
+              } else {
+                LOG.info("Download successful: '{}'.", title);
+              }
+              return path.map(e -> new Download(article, e));
+            });
+    // A cancelled download's result won't be used and says nothing about validity.
+    result.thenAccept(
+        path -> {
+          if (download.isCancelled()) {
+            path.ifPresent(this::deleteQuietly);
+          }
+        });
+    return download;
+  }
+
+  private void deleteQuietly(Path path) {
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      LOG.debug("Could not delete cancelled download: {}.", path, e);
     }
-    return path;
   }
 
   void clearDownloads() throws IOException {
@@ -80,4 +161,28 @@ final class DownloadService {
       }
     }
   }
+
+  // Runs the tasks of the downloads of a single sync on the shared pool. Once it is closed, new
+  // tasks are rejected, which fails the downloads that haven't reached their next step yet, e.g.
+  // the ones that wait on epub.press. A failed download's file is deleted.
+  private static final class SyncTasks implements Executor {
+    private final Executor pool;
+    private volatile boolean closed;
+
+    SyncTasks(Executor pool) {
+      this.pool = pool;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+      if (closed) {
+        throw new RejectedExecutionException("Downloads of this sync were cancelled");
+      }
+      pool.execute(task);
+    }
+
+    void close() {
+      closed = true;
+    }
+  }
 }
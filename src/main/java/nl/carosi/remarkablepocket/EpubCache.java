@@ -0,0 +1,115 @@
+package nl.carosi.remarkablepocket;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import nl.carosi.remarkablepocket.model.Article;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+// Keeps generated epubs in the config dir, so an article that is downloaded again, e.g. after a
+// failed upload or after its document was deleted, is copied instead of generated again. Epubs are
+// stored under a hash of the article's URL and Pocket ID. When the cache grows beyond its maximum
+// size, the least recently used epubs are evicted. The modification time of an epub is its last
+// use, so the order survives restarts. Access is synchronized because epubs are downloaded
+// concurrently.
+final class EpubCache {
+  private static final Logger LOG = LoggerFactory.getLogger(EpubCache.class);
+  private static final String DIR_NAME = "epub-cache";
+  private static final String FILE_TYPE = ".epub";
+  private final Path cacheDir;
+  private final long maxBytes;
+
+  public EpubCache(
+      @Value("${config.dir}") Path configDir, @Value("${epub.cache-size}") long maxMegabytes) {
+    this.cacheDir = configDir.resolve(DIR_NAME);
+    this.maxBytes = maxMegabytes * 1024 * 1024;
+    if (maxBytes > 0) {
+      try {
+        Files.createDirectories(cacheDir);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Could not create epub cache: " + cacheDir, e);
+      }
+    }
+  }
+
+  private Path pathOf(Article article) {
+    String key = Hashing.sha256().hashString(article.url() + "\n" + article.id(), UTF_8).toString();
+    return cacheDir.resolve(key + FILE_TYPE);
+  }
+
+  // Returns whether the article's epub was cached and copied to the target.
+  synchronized boolean copyTo(Article article, Path target) {
+    Path cached = pathOf(article);
+    if (maxBytes <= 0 || !Files.exists(cached)) {
+      return false;
+    }
+    try {
+      Files.copy(cached, target, REPLACE_EXISTING);
+      Files.setLastModifiedTime(cached, FileTime.from(Instant.now()));
+      LOG.debug("Copied '{}' from the epub cache.", article.title());
+      return true;
+    } catch (IOException e) {
+      LOG.debug("Could not copy '{}' from the epub cache.", article.title(), e);
+      return false;
+    }
+  }
+
+  synchronized void put(Article article, Path epub) {
+    if (maxBytes <= 0) {
+      return;
+    }
+    try {
+      if (Files.size(epub) > maxBytes) {
+        return;
+      }
+      // Moved into place, so an interrupted copy never leaves a truncated epub in the cache.
+      Path tmp = Files.createTempFile(cacheDir, null, ".tmp");
+      try {
+        Files.copy(epub, tmp, REPLACE_EXISTING);
+        Files.move(tmp, pathOf(article), ATOMIC_MOVE, REPLACE_EXISTING);
+      } finally {
+        Files.deleteIfExists(tmp);
+      }
+      LOG.debug("Cached the epub of '{}'.", article.title());
+      evict();
+    } catch (IOException e) {
+      LOG.debug("Could not cache the epub of '{}'.", article.title(), e);
+    }
+  }
+
+  private void evict() throws IOException {
+    List<CachedEpub> epubs = new ArrayList<>();
+    long size = 0;
+    try (DirectoryStream<Path> paths = Files.newDirectoryStream(cacheDir, "*" + FILE_TYPE)) {
+      for (Path path : paths) {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        epubs.add(new CachedEpub(path, attributes.size(), attributes.lastModifiedTime()));
+        size += attributes.size();
+      }
+    }
+    epubs.sort(Comparator.comparing(CachedEpub::lastUsed));
+    for (int i = 0; size > maxBytes && i < epubs.size(); i++) {
+      CachedEpub epub = epubs.get(i);
+      Files.delete(epub.path());
+      size -= epub.size();
+      LOG.debug("Evicted {} from the epub cache.", epub.path().getFileName());
+    }
+  }
+
+  private record CachedEpub(Path path, long size, FileTime lastUsed) {}
+}
@@ -0,0 +1,23 @@
+package nl.carosi.remarkablepocket;
+
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import nl.carosi.remarkablepocket.model.Article;
+
+// Creates the epub for an article. The article must be stored at OEBPS/content/s1.xhtml and the
+// publisher must contain the Pocket ID, because MetadataProvider relies on both.
+interface EpubGenerator {
+  // The name by which the generator is selected.
+  String name();
+
+  // Whether the generator mostly waits for a remote service. Its jobs are then all started at
+  // once, rather than being limited by the number of download workers.
+  default boolean isPipelined() {
+    return false;
+  }
+
+  // Writes the article's epub to the target, running any blocking work on the executor. Completes
+  // with whether the epub contains enough content to be considered valid.
+  CompletableFuture<Boolean> generate(Article article, Path target, Executor executor);
+}
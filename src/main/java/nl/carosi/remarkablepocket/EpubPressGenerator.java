@@ -0,0 +1,78 @@
+package nl.carosi.remarkablepocket;
+
+import static nl.carosi.remarkablepocket.ArticleDownloader.publisherOf;
+
+import jakarta.annotation.PreDestroy;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import nl.carosi.remarkablepocket.model.Article;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.http.HttpMethod;
+import org.springframework.web.client.RestTemplate;
+
+// Generates epubs using the epub.press service. Books are submitted as soon as they are requested
+// and downloaded as soon as the poller reports them ready, so the jobs run in parallel on the
+// service.
+class EpubPressGenerator implements EpubGenerator {
+  static final String NAME = "epub-press";
+
+  private final RestTemplate restTemplate;
+  private final EpubRewriter epubRewriter;
+  private final EpubPressPoller poller;
+  private final String baseUrl;
+
+  public EpubPressGenerator(
+      RestTemplateBuilder restTemplateBuilder,
+      EpubRewriter epubRewriter,
+      SyncMetrics metrics,
+      @Value("${epub.press-url}") String baseUrl) {
+    this.restTemplate = restTemplateBuilder.build();
+    this.epubRewriter = epubRewriter;
+    this.poller = new EpubPressPoller(restTemplate, baseUrl, metrics);
+    this.baseUrl = baseUrl;
+  }
+
+  @PreDestroy
+  void shutdown() {
+    poller.shutdown();
+  }
+
+  @Override
+  public String name() {
+    return NAME;
+  }
+
+  @Override
+  public boolean isPipelined() {
+    return true;
+  }
+
+  @Override
+  public CompletableFuture<Boolean> generate(Article article, Path target, Executor executor) {
+    return CompletableFuture.supplyAsync(() -> submit(article), executor)
+        .thenCompose(poller::await)
+        .thenApplyAsync(downloadId -> download(downloadId, article, target), executor);
+  }
+
+  private String submit(Article article) {
+    DownloadRequest req =
+        new DownloadRequest(article.url(), publisherOf(article), new String[] {article.url()});
+    return restTemplate.postForObject(baseUrl, req, DownloadResponse.class).id();
+  }
+
+  private boolean download(String downloadId, Article article, Path target) {
+    Boolean isValid =
+        restTemplate.execute(
+            baseUrl + "/" + downloadId + "/download",
+            HttpMethod.GET,
+            null,
+            res -> epubRewriter.rewrite(res.getBody(), target, article.title()));
+    return Boolean.TRUE.equals(isValid);
+  }
+
+  private record DownloadRequest(String author, String publisher, String[] urls) {}
+
+  private record DownloadResponse(String id) {}
+}
@@ -0,0 +1,112 @@
+package nl.carosi.remarkablepocket;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+// Tracks the status of all outstanding epub.press jobs on a single thread. Each job is polled at
+// an interval based on its progress so far, so jobs that are almost done are polled sooner.
+final class EpubPressPoller {
+  private static final Logger LOG = LoggerFactory.getLogger(EpubPressPoller.class);
+  private static final Duration MIN_INTERVAL = Duration.ofMillis(500);
+  private static final Duration MAX_INTERVAL = Duration.ofSeconds(5);
+  // Jobs that are not done within this time are considered failed.
+  private static final Duration TIMEOUT = Duration.ofSeconds(30);
+
+  private final RestTemplate restTemplate;
+  private final String baseUrl;
+  private final SyncMetrics metrics;
+  private final ScheduledExecutorService scheduler =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setNameFormat("epub-press-poller").setDaemon(true).build());
+
+  EpubPressPoller(RestTemplate restTemplate, String baseUrl, SyncMetrics metrics) {
+    this.restTemplate = restTemplate;
+    this.baseUrl = baseUrl;
+    this.metrics = metrics;
+  }
+
+  // Completes when the job's book is ready for download. The job is polled until it is ready or
+  // has timed out, also when a future derived from this one is cancelled, which doesn't cancel it.
+  CompletableFuture<String> await(String downloadId) {
+    Job job = new Job(downloadId, Instant.now());
+    schedule(job, MIN_INTERVAL);
+    return job.ready;
+  }
+
+  void shutdown() {
+    scheduler.shutdownNow();
+  }
+
+  private void schedule(Job job, Duration delay) {
+    scheduler.schedule(() -> poll(job), delay.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  private void poll(Job job) {
+    if (job.ready.isDone()) {
+      return;
+    }
+    int progress = job.progress;
+    try {
+      StatusResponse res =
+          restTemplate.getForObject(
+              baseUrl + "/" + job.downloadId + "/status", StatusResponse.class);
+      if (res != null) {
+        progress = res.progress();
+        LOG.debug("Status of {}: {} progress: {}%", job.downloadId, res.message(), progress);
+      }
+    } catch (RestClientException e) {
+      LOG.debug("Could not retrieve status of {}.", job.downloadId, e);
+      metrics.retried("epub-press-status");
+    }
+
+    Instant now = Instant.now();
+    if (progress == 100) {
+      job.ready.complete(job.downloadId);
+    } else if (now.isAfter(job.started.plus(TIMEOUT))) {
+      job.ready.completeExceptionally(new RuntimeException("Epub generation error"));
+    } else {
+      schedule(job, nextInterval(job, progress, now));
+    }
+  }
+
+  private static Duration nextInterval(Job job, int progress, Instant now) {
+    Duration interval;
+    if (progress <= 0) {
+      // Nothing to estimate from yet.
+      interval = job.interval.multipliedBy(2);
+    } else {
+      Duration elapsed = Duration.between(job.started, now);
+      interval = elapsed.multipliedBy(100 - progress).dividedBy(progress);
+    }
+    job.progress = progress;
+    job.interval =
+        interval.compareTo(MIN_INTERVAL) < 0
+            ? MIN_INTERVAL
+            : interval.compareTo(MAX_INTERVAL) > 0 ? MAX_INTERVAL : interval;
+    return job.interval;
+  }
+
+  private static final class Job {
+    private final String downloadId;
+    private final Instant started;
+    private final CompletableFuture<String> ready = new CompletableFuture<>();
+    private int progress = 0;
+    private Duration interval = MIN_INTERVAL;
+
+    Job(String downloadId, Instant started) {
+      this.downloadId = downloadId;
+      this.started = started;
+    }
+  }
+
+  private record StatusResponse(String message, int progress) {}
+}
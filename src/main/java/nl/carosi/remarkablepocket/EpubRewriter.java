@@ -0,0 +1,305 @@
+package nl.carosi.remarkablepocket;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static nl.carosi.remarkablepocket.SyncMetrics.FORMAT;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import net.lingala.zip4j.io.inputstream.ZipInputStream;
+import net.lingala.zip4j.model.LocalFileHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Rewrites an epub generated by epub.press in a single pass over the archive. Entries are copied
+// as they are read, so they are never held in memory. Only the small OPF file is rewritten, and
+// the images when they are optimized.
+// The archive is read with zip4j, which is lenient towards the archives epub.press produces. It is
+// written with java.util.zip, because zip4j can't write a stored entry's size and CRC to its local
+// header when streaming, which epub readers require for the mimetype entry.
+final class EpubRewriter {
+  private static final Logger LOG = LoggerFactory.getLogger(EpubRewriter.class);
+  static final String OPF_DIR = "OEBPS/";
+  static final String OPF_PATH = OPF_DIR + "content.opf";
+  static final String CONTENT_HREF = "content/s1.xhtml";
+  static final String CONTENT_ID = "s1";
+  private static final String NCX_HREF = "toc.ncx";
+  private static final String MIMETYPE = "application/epub+zip";
+  private static final String NCX_NS = "http://www.daisy.org/z3986/2005/ncx/";
+  // Minimum character count for an epub to be considered valid.
+  static final int MIN_VALID_CONTENT_SIZE = 4000;
+  private static final Set<String> UNWANTED_RESOURCES =
+      Set.of(
+          "cover.xhtml",
+          "images/cover.png",
+          "content/s2.xhtml", // References
+          "content/toc.xhtml", // Table of contents
+          NCX_HREF); // Replaced by a table of contents that only contains the article
+
+  private final SyncMetrics metrics;
+  private final ImageOptimizer imageOptimizer;
+  private final XMLInputFactory inputFactory;
+  private final XMLOutputFactory outputFactory;
+  private final XMLEventFactory eventFactory;
+
+  EpubRewriter(SyncMetrics metrics, ImageOptimizer imageOptimizer) {
+    this.metrics = metrics;
+    this.imageOptimizer = imageOptimizer;
+    inputFactory = XMLInputFactory.newInstance();
+    inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    outputFactory = XMLOutputFactory.newInstance();
+    eventFactory = XMLEventFactory.newInstance();
+  }
+
+  // Counts the characters in a UTF-8 stream by skipping continuation bytes.
+  private static int countChars(byte[] buf, int len) {
+    int count = 0;
+    for (int i = 0; i < len; i++) {
+      if ((buf[i] & 0xC0) != 0x80) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static String attr(StartElement element, String name) {
+    Attribute attribute = element.getAttributeByName(new QName(name));
+    return attribute == null ? null : attribute.getValue();
+  }
+
+  // Strips everything but the article from the epub, sets its title, and writes it to the
+  // target. Returns whether the article contains enough content to be considered valid.
+  boolean rewrite(InputStream epub, Path target, String title) throws IOException {
+    return metrics.time(FORMAT, () -> rewriteEpub(epub, target, title));
+  }
+
+  private boolean rewriteEpub(InputStream epub, Path target, String title) throws IOException {
+    Book book = new Book(title);
+    try (ZipInputStream in = new ZipInputStream(epub);
+        ZipOutputStream out =
+            new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(target)))) {
+      writeMimetype(out);
+      byte[] buf = new byte[8192];
+      LocalFileHeader header;
+      while ((header = in.getNextEntry()) != null) {
+        String name = header.getFileName();
+        if (header.isDirectory()
+            || name.equals("mimetype")
+            || (name.startsWith(OPF_DIR)
+                && UNWANTED_RESOURCES.contains(name.substring(OPF_DIR.length())))) {
+          continue;
+        }
+
+        out.putNextEntry(new ZipEntry(name));
+        if (name.equals(OPF_PATH)) {
+          out.write(rewriteOpf(in.readAllBytes(), book));
+        } else if (imageOptimizer.isEnabled() && ImageOptimizer.isImage(name)) {
+          out.write(imageOptimizer.optimize(in.readAllBytes(), book.images));
+        } else {
+          boolean isContent = name.equals(OPF_DIR + CONTENT_HREF);
+          int len;
+          while ((len = in.read(buf)) != -1) {
+            out.write(buf, 0, len);
+            // Stop counting once the content is known to be valid.
+            if (isContent && book.contentSize <= MIN_VALID_CONTENT_SIZE) {
+              book.contentSize += countChars(buf, len);
+            }
+          }
+        }
+        out.closeEntry();
+      }
+
+      out.putNextEntry(new ZipEntry(OPF_DIR + NCX_HREF));
+      out.write(createNcx(book));
+      out.closeEntry();
+    }
+    if (book.images.originalSize() > 0) {
+      LOG.debug(
+          "Optimized the images of '{}' from {} KB to {} KB.",
+          title,
+          book.images.originalSize() / 1024,
+          book.images.optimizedSize() / 1024);
+    }
+    return book.contentSize > MIN_VALID_CONTENT_SIZE;
+  }
+
+  private void writeMimetype(ZipOutputStream out) throws IOException {
+    // The mimetype must be the first entry and must not be compressed.
+    byte[] mimetype = MIMETYPE.getBytes(UTF_8);
+    CRC32 crc = new CRC32();
+    crc.update(mimetype);
+    ZipEntry entry = new ZipEntry("mimetype");
+    entry.setMethod(ZipEntry.STORED);
+    entry.setSize(mimetype.length);
+    entry.setCrc(crc.getValue());
+    out.putNextEntry(entry);
+    out.write(mimetype);
+    out.closeEntry();
+  }
+
+  private byte[] rewriteOpf(byte[] opf, Book book) throws IOException {
+    ByteArrayOutputStream rewritten = new ByteArrayOutputStream(opf.length);
+    try {
+      XMLEventReader reader = inputFactory.createXMLEventReader(new ByteArrayInputStream(opf));
+      XMLEventWriter writer = outputFactory.createXMLEventWriter(rewritten, UTF_8.name());
+      boolean hasTitle = false;
+      while (reader.hasNext()) {
+        XMLEvent event = reader.nextEvent();
+        if (!event.isStartElement()) {
+          writer.add(event);
+          continue;
+        }
+
+        StartElement element = event.asStartElement();
+        switch (element.getName().getLocalPart()) {
+          case "title" -> {
+            // Replace the title, and drop any additional ones.
+            skipElement(reader);
+            if (!hasTitle) {
+              writer.add(element);
+              writer.add(eventFactory.createCharacters(book.title));
+              writer.add(eventFactory.createEndElement(element.getName(), null));
+              hasTitle = true;
+            }
+          }
+          case "identifier" -> {
+            writer.add(element);
+            String identifier = reader.getElementText();
+            if (book.identifier.isEmpty()) {
+              book.identifier = identifier;
+            }
+            writer.add(eventFactory.createCharacters(identifier));
+            writer.add(eventFactory.createEndElement(element.getName(), null));
+          }
+          case "item" -> {
+            String href = attr(element, "href");
+            if (href != null && UNWANTED_RESOURCES.contains(href) && !href.equals(NCX_HREF)) {
+              skipElement(reader);
+            } else {
+              writer.add(element);
+            }
+          }
+          case "itemref" -> {
+            if (CONTENT_ID.equals(attr(element, "idref"))) {
+              writer.add(element);
+            } else {
+              skipElement(reader);
+            }
+          }
+          // The guide only references the cover and table of contents that are removed.
+          case "guide" -> skipElement(reader);
+          case "meta" ->
+              writer.add("cover".equals(attr(element, "name")) ? withCover(element) : element);
+          default -> writer.add(element);
+        }
+      }
+      writer.close();
+    } catch (XMLStreamException e) {
+      throw new IOException("Could not rewrite " + OPF_PATH, e);
+    }
+    return rewritten.toByteArray();
+  }
+
+  // The article itself is used as the cover, so it is shown on the Remarkable's home screen.
+  private StartElement withCover(StartElement meta) {
+    List<Attribute> attributes = new ArrayList<>();
+    for (Iterator<Attribute> it = meta.getAttributes(); it.hasNext(); ) {
+      Attribute attribute = it.next();
+      attributes.add(
+          attribute.getName().getLocalPart().equals("content")
+              ? eventFactory.createAttribute("content", CONTENT_ID)
+              : attribute);
+    }
+    return eventFactory.createStartElement(
+        meta.getName(), attributes.iterator(), meta.getNamespaces());
+  }
+
+  // Consumes events up to and including the end of the element that was just started.
+  private static void skipElement(XMLEventReader reader) throws XMLStreamException {
+    int depth = 1;
+    while (depth > 0) {
+      XMLEvent event = reader.nextEvent();
+      if (event.isStartElement()) {
+        depth++;
+      } else if (event.isEndElement()) {
+        depth--;
+      }
+    }
+  }
+
+  // A table of contents with a single entry pointing to the article.
+  private byte[] createNcx(Book book) throws IOException {
+    ByteArrayOutputStream ncx = new ByteArrayOutputStream();
+    try {
+      XMLStreamWriter writer = outputFactory.createXMLStreamWriter(ncx, UTF_8.name());
+      writer.writeStartDocument(UTF_8.name(), "1.0");
+      writer.writeStartElement("ncx");
+      writer.writeDefaultNamespace(NCX_NS);
+      writer.writeAttribute("version", "2005-1");
+      writer.writeStartElement("head");
+      writer.writeEmptyElement("meta");
+      writer.writeAttribute("name", "dtb:uid");
+      writer.writeAttribute("content", book.identifier);
+      writer.writeEndElement();
+      writer.writeStartElement("docTitle");
+      writer.writeStartElement("text");
+      writer.writeCharacters(book.title);
+      writer.writeEndElement();
+      writer.writeEndElement();
+      writer.writeStartElement("navMap");
+      writer.writeStartElement("navPoint");
+      writer.writeAttribute("id", CONTENT_ID);
+      writer.writeAttribute("playOrder", "1");
+      writer.writeStartElement("navLabel");
+      writer.writeStartElement("text");
+      writer.writeCharacters(book.title);
+      writer.writeEndElement();
+      writer.writeEndElement();
+      writer.writeEmptyElement("content");
+      writer.writeAttribute("src", CONTENT_HREF);
+      writer.writeEndElement();
+      writer.writeEndElement();
+      writer.writeEndElement();
+      writer.writeEndDocument();
+      writer.close();
+    } catch (XMLStreamException e) {
+      throw new IOException("Could not create " + NCX_HREF, e);
+    }
+    return ncx.toByteArray();
+  }
+
+  // State collected while rewriting a single book.
+  private final class Book {
+    private final String title;
+    private final ImageOptimizer.Budget images = imageOptimizer.newBudget();
+    private String identifier = "";
+    private int contentSize;
+
+    Book(String title) {
+      this.title = title;
+    }
+  }
+}
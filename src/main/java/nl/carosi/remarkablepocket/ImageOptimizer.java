@@ -0,0 +1,205 @@
+package nl.carosi.remarkablepocket;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+// Shrinks the images in a book for the Remarkable: they are converted to grayscale (unless colors
+// are kept for the Paper Pro), downscaled to fit the display, and JPEGs are re-encoded at the
+// configured quality. Images keep their format, so their names and media types in the book stay
+// valid. The images of a book share a budget: an image that doesn't fit in what is left of it is
+// downscaled further, and is replaced by a single pixel if it still doesn't fit. Images that can't
+// be decoded are kept as they are.
+final class ImageOptimizer {
+  private static final Logger LOG = LoggerFactory.getLogger(ImageOptimizer.class);
+  // The display of the Remarkable 1 and 2. The Paper Pro's is slightly larger.
+  private static final int MAX_WIDTH = 1404;
+  private static final int MAX_HEIGHT = 1872;
+  // Smaller images aren't legible, so they are replaced by a single pixel when over budget.
+  private static final int MIN_WIDTH = 128;
+  private static final Set<String> EXTENSIONS = Set.of("jpg", "jpeg", "png", "gif");
+
+  private final int quality;
+  private final boolean color;
+  private final long budgetBytes;
+
+  public ImageOptimizer(
+      @Value("${epub.image-quality}") int quality,
+      @Value("${epub.image-color}") boolean color,
+      @Value("${epub.image-budget}") long budgetMegabytes) {
+    checkArgument(quality >= 0 && quality <= 100, "Image quality must be between 0 and 100.");
+    this.quality = quality;
+    this.color = color;
+    this.budgetBytes = budgetMegabytes * 1024 * 1024;
+  }
+
+  static boolean isImage(String name) {
+    String extension = name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT);
+    return EXTENSIONS.contains(extension);
+  }
+
+  boolean isEnabled() {
+    return quality > 0;
+  }
+
+  Budget newBudget() {
+    return new Budget(budgetBytes > 0 ? budgetBytes : Long.MAX_VALUE);
+  }
+
+  byte[] optimize(byte[] image, Budget budget) {
+    if (!isEnabled()) {
+      return image;
+    }
+    byte[] optimized;
+    try {
+      optimized = optimizeImage(image, budget.remaining);
+    } catch (IOException | RuntimeException e) {
+      // ImageIO throws runtime exceptions on some malformed images.
+      LOG.debug("Could not optimize image, keeping the original.", e);
+      optimized = image;
+    }
+    budget.remaining -= optimized.length;
+    budget.originalSize += image.length;
+    budget.optimizedSize += optimized.length;
+    return optimized;
+  }
+
+  private byte[] optimizeImage(byte[] image, long remaining) throws IOException {
+    ImageInputStream in = new MemoryCacheImageInputStream(new ByteArrayInputStream(image));
+    Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+    if (!readers.hasNext()) {
+      return image;
+    }
+    ImageReader reader = readers.next();
+    String format;
+    double scale;
+    int width;
+    int height;
+    BufferedImage decoded;
+    try {
+      reader.setInput(in, true, true);
+      format = reader.getFormatName().toLowerCase(Locale.ROOT);
+      int sourceWidth = reader.getWidth(0);
+      int sourceHeight = reader.getHeight(0);
+      scale =
+          Math.min(
+              1, Math.min((double) MAX_WIDTH / sourceWidth, (double) MAX_HEIGHT / sourceHeight));
+      width = Math.max(1, (int) Math.round(sourceWidth * scale));
+      height = Math.max(1, (int) Math.round(sourceHeight * scale));
+      // Large images are subsampled while they are decoded, so they are never held in memory at
+      // full size. They are decoded at twice the target size or more, and resized from there.
+      int subsampling = Math.max(1, Math.min(sourceWidth / width, sourceHeight / height) / 2);
+      ImageReadParam param = reader.getDefaultReadParam();
+      param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+      decoded = reader.read(0, param);
+    } finally {
+      reader.dispose();
+    }
+
+    byte[] optimized = encode(resize(decoded, width, height), format);
+    // Recompressing an image that was already small can make it larger.
+    if (scale == 1 && optimized.length >= image.length) {
+      optimized = image;
+    }
+    while (optimized.length > remaining && width / 2 >= MIN_WIDTH) {
+      width /= 2;
+      height = Math.max(1, height / 2);
+      optimized = encode(resize(decoded, width, height), format);
+    }
+    if (optimized.length > remaining) {
+      LOG.debug("Image budget exceeded, replacing an image by a single pixel.");
+      optimized = encode(resize(decoded, 1, 1), format);
+    }
+    return optimized;
+  }
+
+  // Downscales in steps of at most half the size, which keeps thin lines and text legible.
+  private BufferedImage resize(BufferedImage image, int width, int height) {
+    BufferedImage resized = image;
+    int currentWidth = image.getWidth();
+    int currentHeight = image.getHeight();
+    do {
+      currentWidth = Math.max(width, currentWidth / 2);
+      currentHeight = Math.max(height, currentHeight / 2);
+      resized = draw(resized, currentWidth, currentHeight);
+    } while (currentWidth > width || currentHeight > height);
+    return resized;
+  }
+
+  private BufferedImage draw(BufferedImage image, int width, int height) {
+    BufferedImage target =
+        new BufferedImage(
+            width, height, color ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_BYTE_GRAY);
+    Graphics2D graphics = target.createGraphics();
+    try {
+      graphics.setRenderingHint(
+          RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+      // Transparent areas are shown on the white page.
+      graphics.setColor(Color.WHITE);
+      graphics.fillRect(0, 0, width, height);
+      graphics.drawImage(image, 0, 0, width, height, null);
+    } finally {
+      graphics.dispose();
+    }
+    return target;
+  }
+
+  private byte[] encode(BufferedImage image, String format) throws IOException {
+    ImageWriter writer = ImageIO.getImageWritersByFormatName(format).next();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ImageOutputStream out = new MemoryCacheImageOutputStream(bytes)) {
+      writer.setOutput(out);
+      ImageWriteParam param = writer.getDefaultWriteParam();
+      if (format.equals("jpeg")) {
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality / 100f);
+      }
+      writer.write(null, new IIOImage(image, null, null), param);
+    } finally {
+      writer.dispose();
+    }
+    return bytes.toByteArray();
+  }
+
+  // What is left of the image budget of a book, and the sizes of its images before and after.
+  static final class Budget {
+    private long remaining;
+    private long originalSize;
+    private long optimizedSize;
+
+    private Budget(long remaining) {
+      this.remaining = remaining;
+    }
+
+    long originalSize() {
+      return originalSize;
+    }
+
+    long optimizedSize() {
+      return optimizedSize;
+    }
+  }
+}
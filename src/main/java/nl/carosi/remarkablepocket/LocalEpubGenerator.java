@@ -0,0 +1,227 @@
+package nl.carosi.remarkablepocket;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.*;
+import static nl.carosi.remarkablepocket.ArticleDownloader.publisherOf;
+import static nl.carosi.remarkablepocket.EpubRewriter.CONTENT_HREF;
+import static nl.carosi.remarkablepocket.EpubRewriter.CONTENT_ID;
+import static nl.carosi.remarkablepocket.EpubRewriter.MIN_VALID_CONTENT_SIZE;
+import static nl.carosi.remarkablepocket.SyncMetrics.FORMAT;
+
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import nl.carosi.remarkablepocket.model.Article;
+import nl.siegmann.epublib.domain.Book;
+import nl.siegmann.epublib.domain.Identifier;
+import nl.siegmann.epublib.domain.MediaType;
+import nl.siegmann.epublib.domain.Resource;
+import nl.siegmann.epublib.epub.EpubWriter;
+import nl.siegmann.epublib.service.MediatypeService;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Entities;
+import org.jsoup.safety.Cleaner;
+import org.jsoup.safety.Safelist;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+// Generates epubs locally by fetching the article's page and extracting its readable content.
+class LocalEpubGenerator implements EpubGenerator {
+  static final String NAME = "local";
+
+  private static final Logger LOG = LoggerFactory.getLogger(LocalEpubGenerator.class);
+  private static final String USER_AGENT = "Mozilla/5.0 (compatible; RemarkablePocket)";
+  private static final String IMAGES_DIR = "images/";
+  // Elements that never contain the article itself.
+  private static final String NON_CONTENT =
+      "script, style, noscript, template, iframe, form, button, nav, header, footer, aside, svg";
+  private static final Safelist SAFELIST = Safelist.relaxed().preserveRelativeLinks(false);
+  // Larger images are left out, so a single image can't exhaust the heap.
+  private static final int MAX_IMAGE_SIZE = 10 * 1024 * 1024;
+
+  private final RestTemplate restTemplate;
+  private final SyncMetrics metrics;
+  private final ImageOptimizer imageOptimizer;
+  private final EpubWriter epubWriter = new EpubWriter();
+
+  public LocalEpubGenerator(
+      RestTemplateBuilder restTemplateBuilder, SyncMetrics metrics, ImageOptimizer imageOptimizer) {
+    this.metrics = metrics;
+    this.imageOptimizer = imageOptimizer;
+    this.restTemplate =
+        restTemplateBuilder.defaultHeader(HttpHeaders.USER_AGENT, USER_AGENT).build();
+  }
+
+  @Override
+  public String name() {
+    return NAME;
+  }
+
+  @Override
+  public CompletableFuture<Boolean> generate(Article article, Path target, Executor executor) {
+    return CompletableFuture.supplyAsync(
+        () -> {
+          try {
+            return generateBook(article, target);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        },
+        executor);
+  }
+
+  private boolean generateBook(Article article, Path target) throws IOException {
+    byte[] html = restTemplate.getForObject(URI.create(article.url()), byte[].class);
+    if (html == null) {
+      throw new IOException("Empty response for: " + article.url());
+    }
+    return metrics.time(FORMAT, () -> buildBook(article, target, html));
+  }
+
+  private boolean buildBook(Article article, Path target, byte[] html) throws IOException {
+    // Let jsoup detect the charset from the page's meta tags.
+    Document page = Jsoup.parse(new ByteArrayInputStream(html), null, article.url());
+
+    Book book = new Book();
+    book.getMetadata().addTitle(article.title());
+    book.getMetadata().addPublisher(publisherOf(article));
+    book.getMetadata().addIdentifier(new Identifier(Identifier.Scheme.URL, article.url()));
+
+    Element content = cleanContent(extractContent(page), article.url());
+    addImages(book, content);
+    String xhtml = toXhtml(article.title(), content);
+    book.addSection(
+        article.title(),
+        new Resource(CONTENT_ID, xhtml.getBytes(UTF_8), CONTENT_HREF, MediatypeService.XHTML));
+
+    try (OutputStream out = Files.newOutputStream(target, CREATE, TRUNCATE_EXISTING, WRITE)) {
+      epubWriter.write(book, out);
+    }
+    // Only the text counts, the markup says nothing about whether the article was found.
+    return content.text().length() > MIN_VALID_CONTENT_SIZE;
+  }
+
+  // Picks the element that most likely contains the article: an explicit article or main element,
+  // or otherwise the element containing the most paragraph text.
+  private static Element extractContent(Document page) {
+    page.select(NON_CONTENT).remove();
+    Element article = page.selectFirst("article, main, [role=main]");
+    if (article != null) {
+      return article;
+    }
+
+    Map<Element, Integer> scores = new HashMap<>();
+    for (Element paragraph : page.select("p")) {
+      Element parent = paragraph.parent();
+      if (parent != null) {
+        scores.merge(parent, paragraph.text().length(), Integer::sum);
+      }
+    }
+    return scores.entrySet().stream()
+        .max(Map.Entry.comparingByValue())
+        .map(Map.Entry::getKey)
+        .orElse(page.body());
+  }
+
+  // Strips all markup that is not needed to read the article and makes links absolute.
+  private static Element cleanContent(Element content, String baseUri) {
+    Document dirty = Document.createShell(baseUri);
+    dirty.body().appendChildren(content.childNodesCopy());
+    Document clean = new Cleaner(SAFELIST).clean(dirty);
+    clean
+        .outputSettings()
+        .syntax(Document.OutputSettings.Syntax.xml)
+        .escapeMode(Entities.EscapeMode.xhtml)
+        .charset(UTF_8)
+        .prettyPrint(false);
+    return clean.body();
+  }
+
+  // Embeds the article's images in the book. Images that can't be retrieved are left out.
+  private void addImages(Book book, Element content) {
+    ImageOptimizer.Budget budget = imageOptimizer.newBudget();
+    int count = 0;
+    for (Element img : content.select("img")) {
+      Optional<Resource> image = fetchImage(img.attr("src"), "img" + count, budget);
+      if (image.isEmpty()) {
+        img.remove();
+        continue;
+      }
+      book.getResources().add(image.get());
+      // The content is stored in a subdirectory of the images' parent.
+      img.attr("src", "../" + image.get().getHref());
+      count++;
+    }
+  }
+
+  private Optional<Resource> fetchImage(String url, String id, ImageOptimizer.Budget budget) {
+    try {
+      return Optional.ofNullable(
+          restTemplate.execute(
+              URI.create(url), HttpMethod.GET, null, res -> readImage(url, id, res, budget)));
+    } catch (RestClientException | IllegalArgumentException e) {
+      LOG.debug("Could not retrieve image: {}.", url, e);
+      return Optional.empty();
+    }
+  }
+
+  // Returns null when the image is left out.
+  private Resource readImage(
+      String url, String id, ClientHttpResponse res, ImageOptimizer.Budget budget)
+      throws IOException {
+    MediaType mediaType =
+        Optional.ofNullable(res.getHeaders().getContentType())
+            .map(e -> MediatypeService.getMediaTypeByName(e.getType() + "/" + e.getSubtype()))
+            .orElseGet(() -> MediatypeService.determineMediaType(URI.create(url).getPath()));
+    if (mediaType == null
+        || !(MediatypeService.isBitmapImage(mediaType) || mediaType == MediatypeService.SVG)) {
+      LOG.debug("Skipping image with unsupported type: {}.", url);
+      return null;
+    }
+    // The content length is unknown (-1) when the response is chunked.
+    if (res.getHeaders().getContentLength() > MAX_IMAGE_SIZE) {
+      LOG.debug("Skipping image that exceeds {} bytes: {}.", MAX_IMAGE_SIZE, url);
+      return null;
+    }
+    byte[] body = ByteStreams.limit(res.getBody(), MAX_IMAGE_SIZE + 1L).readAllBytes();
+    if (body.length == 0 || body.length > MAX_IMAGE_SIZE) {
+      LOG.debug("Skipping empty image or image that exceeds {} bytes: {}.", MAX_IMAGE_SIZE, url);
+      return null;
+    }
+    String href = IMAGES_DIR + id + mediaType.getDefaultExtension();
+    byte[] data =
+        MediatypeService.isBitmapImage(mediaType) ? imageOptimizer.optimize(body, budget) : body;
+    return new Resource(id, data, href, mediaType);
+  }
+
+  private static String toXhtml(String title, Element content) {
+    String escapedTitle = Entities.escape(title);
+    return """
+        <?xml version="1.0" encoding="UTF-8"?>
+        <!DOCTYPE html>
+        <html xmlns="http://www.w3.org/1999/xhtml">
+        <head><title>%s</title></head>
+        <body><h1>%s</h1>%s</body>
+        </html>
+        """
+        .formatted(escapedTitle, escapedTitle, content.html());
+  }
+}
@@ -0,0 +1,142 @@
+package nl.carosi.remarkablepocket;
+
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import nl.carosi.remarkablepocket.model.Document;
+import nl.carosi.remarkablepocket.model.DocumentMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+// Caches the metadata extracted from a document's bundle for as long as the document is not
+// modified, so only documents that changed since the last sync need to be downloaded. Access is
+// synchronized because metadata is retrieved from several threads at once.
+public class MetadataCache {
+  private static final Logger LOG = LoggerFactory.getLogger(MetadataCache.class);
+  private static final String DB_NAME = "metadata.db";
+  private final Path dbPath;
+  private Connection conn;
+
+  public MetadataCache(@Value("${config.dir}") Path configDir) {
+    this.dbPath = configDir.resolve(DB_NAME);
+    initializeDatabase();
+  }
+
+  private void initializeDatabase() {
+    try {
+      Files.createDirectories(dbPath.getParent());
+      String url = "jdbc:sqlite:" + dbPath;
+      conn = DriverManager.getConnection(url);
+
+      String sql =
+          "CREATE TABLE IF NOT EXISTS document_metadata ("
+              + "document_id TEXT PRIMARY KEY, "
+              + "version INTEGER NOT NULL, "
+              + "modified TEXT, "
+              + "page_count INTEGER NOT NULL, "
+              + "pocket_id TEXT NOT NULL)";
+      try (Statement stmt = conn.createStatement()) {
+        stmt.execute(sql);
+      }
+      LOG.debug("Metadata cache initialized at: {}", dbPath);
+    } catch (SQLException | IOException e) {
+      LOG.error("Error initializing metadata cache", e);
+    }
+  }
+
+  public synchronized Optional<DocumentMetadata> get(Document doc) {
+    if (doc.id() == null) {
+      return Optional.empty();
+    }
+
+    String sql =
+        "SELECT page_count, pocket_id FROM document_metadata "
+            + "WHERE document_id = ? AND version = ? AND modified IS ?";
+    try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+      pstmt.setString(1, doc.id());
+      pstmt.setInt(2, doc.version());
+      pstmt.setString(3, doc.modifiedClient());
+      try (ResultSet rs = pstmt.executeQuery()) {
+        if (rs.next()) {
+          return Optional.of(
+              new DocumentMetadata(doc, rs.getInt("page_count"), rs.getString("pocket_id")));
+        }
+      }
+    } catch (SQLException e) {
+      LOG.error("Error reading metadata cache", e);
+    }
+    return Optional.empty();
+  }
+
+  public synchronized void put(DocumentMetadata meta) {
+    Document doc = meta.doc();
+    if (doc.id() == null) {
+      return;
+    }
+
+    String sql =
+        "INSERT OR REPLACE INTO document_metadata"
+            + "(document_id, version, modified, page_count, pocket_id) VALUES(?, ?, ?, ?, ?)";
+    try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+      pstmt.setString(1, doc.id());
+      pstmt.setInt(2, doc.version());
+      pstmt.setString(3, doc.modifiedClient());
+      pstmt.setInt(4, meta.pageCount());
+      pstmt.setString(5, meta.pocketId());
+      pstmt.executeUpdate();
+      LOG.debug("Cached metadata of document: {}", doc.name());
+    } catch (SQLException e) {
+      LOG.error("Error caching document metadata", e);
+    }
+  }
+
+  // Removes the metadata of the documents that are no longer on the Remarkable.
+  public synchronized void retain(Set<String> documentIds) {
+    List<String> removed = new ArrayList<>();
+    try (Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery("SELECT document_id FROM document_metadata")) {
+      while (rs.next()) {
+        if (!documentIds.contains(rs.getString("document_id"))) {
+          removed.add(rs.getString("document_id"));
+        }
+      }
+    } catch (SQLException e) {
+      LOG.error("Error reading metadata cache", e);
+      return;
+    }
+    if (removed.isEmpty()) {
+      return;
+    }
+    try (PreparedStatement pstmt =
+        conn.prepareStatement("DELETE FROM document_metadata WHERE document_id = ?")) {
+      for (String documentId : removed) {
+        pstmt.setString(1, documentId);
+        pstmt.addBatch();
+      }
+      pstmt.executeBatch();
+      LOG.debug("Removed the cached metadata of {} deleted document(s).", removed.size());
+    } catch (SQLException e) {
+      LOG.error("Error removing document metadata", e);
+    }
+  }
+
+  @PreDestroy
+  public synchronized void close() {
+    try {
+      if (conn != null) {
+        conn.close();
+        conn = null;
+        LOG.debug("Metadata cache connection closed");
+      }
+    } catch (SQLException e) {
+      LOG.error("Error closing metadata cache connection", e);
+    }
+  }
+}
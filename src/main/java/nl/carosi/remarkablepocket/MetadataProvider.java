@@ -1,102 +1,156 @@
 package nl.carosi.remarkablepocket;
 
-import static javax.xml.xpath.XPathConstants.NODE;
 import static nl.carosi.remarkablepocket.ArticleDownloader.POCKET_ID_SEPARATOR;
+import static nl.carosi.remarkablepocket.EpubRewriter.OPF_PATH;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.annotations.VisibleForTesting;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
-import java.util.zip.ZipInputStream;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
+import java.util.Optional;
+import java.util.Set;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import nl.carosi.remarkablepocket.model.Document;
 import nl.carosi.remarkablepocket.model.DocumentMetadata;
+import nl.carosi.remarkablepocket.model.SyncedArticle;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.util.xml.SimpleNamespaceContext;
-import org.w3c.dom.Node;
-import org.xml.sax.SAXException;
 
 final class MetadataProvider {
   private static final Logger LOG = LoggerFactory.getLogger(MetadataProvider.class);
 
-  private final RemarkableApi rmapi;
+  private final RemarkableClient rmapi;
   private final ObjectMapper objectMapper;
-  private final DocumentBuilder documentBuilder;
   private final ArticleValidator validator;
-  private final XPath publisherXpath;
+  private final MetadataCache cache;
+  private final SyncJournal journal;
+  private final SyncMetrics metrics;
+  private final WorkingStorage storage;
+  private final XMLInputFactory xmlInputFactory;
 
   public MetadataProvider(
-      RemarkableApi rmapi,
+      RemarkableClient rmapi,
       ObjectMapper objectMapper,
-      DocumentBuilder documentBuilder,
-      ArticleValidator validator) {
+      ArticleValidator validator,
+      MetadataCache cache,
+      SyncJournal journal,
+      SyncMetrics metrics,
+      WorkingStorage storage) {
     this.rmapi = rmapi;
     this.objectMapper = objectMapper;
-    this.documentBuilder = documentBuilder;
     this.validator = validator;
-    this.publisherXpath = constructXpath();
+    this.cache = cache;
+    this.journal = journal;
+    this.metrics = metrics;
+    this.storage = storage;
+    this.xmlInputFactory = XMLInputFactory.newInstance();
+    xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
   }
 
-  private XPath constructXpath() {
-    XPath opfXPath = XPathFactory.newInstance().newXPath();
-    SimpleNamespaceContext nsCtx = new SimpleNamespaceContext();
-    nsCtx.bindNamespaceUri("opf", "http://www.idpf.org/2007/opf");
-    nsCtx.bindNamespaceUri("dc", "http://purl.org/dc/elements/1.1/");
-    opfXPath.setNamespaceContext(nsCtx);
-    return opfXPath;
+  // Returns null when the document is corrupted, in which case it is deleted. Failures of the
+  // Remarkable Cloud, e.g. a command that timed out, are thrown: they don't mean the document is
+  // corrupted.
+  DocumentMetadata getMetadata(String name) {
+    return getMetadata(rmapi, name);
   }
 
-  DocumentMetadata getMetadata(String name) {
+  // Reads the document with the given reader, see RemarkableClient.newReader. Corrupted documents
+  // are deleted with the client itself.
+  DocumentMetadata getMetadata(RemarkableClient reader, String name) {
     LOG.debug("Getting metadata for document: {}.", name);
-    try (ZipFile zip = new ZipFile(rmapi.download(name).toFile())) {
-      String fileHash = zip.entries().nextElement().getName().split("\\.")[0];
-      try (InputStream linesStream = zip.getInputStream(zip.getEntry(fileHash + ".content"));
-          InputStream epubStream = zip.getInputStream(zip.getEntry(fileHash + ".epub"))) {
-        String contentFile = new String(linesStream.readAllBytes());
-        LOG.trace(".content file of {}: {}", fileHash, contentFile);
-        int pageCount = objectMapper.readValue(contentFile, Lines.class).pageCount();
-        String pocketId = extractPocketId(epubStream);
-        LOG.debug("Article '{}' has {} pages and pocket id '{}'.", name, pageCount, pocketId);
-        return new DocumentMetadata(rmapi.info(name), pageCount, pocketId);
-      }
-    } catch (Exception e) {
+    Document doc = reader.info(name);
+    Optional<DocumentMetadata> cached = cache.get(doc);
+    if (cached.isPresent()) {
+      LOG.debug("Document '{}' is unchanged since the last sync. Using cached metadata.", name);
+      return cached.get();
+    }
+    // The journal knows the Pocket ID of every document uploaded since it was introduced.
+    Optional<String> pocketId = journal.find(doc).map(SyncedArticle::pocketId);
+    DocumentMetadata meta;
+    DocumentBundle bundle = reader.download(name);
+    try (bundle) {
+      meta = readMetadata(name, bundle, doc, pocketId);
+    } catch (IOException | XMLStreamException | RuntimeException e) {
       LOG.info(
           "Article '{}' is corrupted. Deleting file and retrieving new article in next sync.",
           name);
       LOG.debug("Article invalid because", e);
       rmapi.delete(name);
       validator.invalidate(name);
+      metrics.corrupted();
       return null;
     }
+    cache.put(meta);
+    return meta;
+  }
+
+  // Only the cached metadata of the given documents is kept.
+  void retainCached(Set<String> documentIds) {
+    cache.retain(documentIds);
+  }
+
+  @VisibleForTesting
+  DocumentMetadata downloadMetadata(String name, Document doc, Optional<String> knownId)
+      throws IOException, XMLStreamException {
+    // Closing the bundle deletes it from the working storage.
+    try (DocumentBundle bundle = rmapi.download(name)) {
+      return readMetadata(name, bundle, doc, knownId);
+    }
+  }
+
+  private DocumentMetadata readMetadata(
+      String name, DocumentBundle bundle, Document doc, Optional<String> knownId)
+      throws IOException, XMLStreamException {
+    String fileHash = bundle.firstEntryName().split("\\.")[0];
+    try (InputStream linesStream = bundle.open(fileHash + ".content")) {
+      String contentFile = new String(linesStream.readAllBytes());
+      LOG.trace(".content file of {}: {}", fileHash, contentFile);
+      int pageCount = objectMapper.readValue(contentFile, Lines.class).pageCount();
+      String pocketId = knownId.isPresent() ? knownId.get() : extractPocketId(bundle, fileHash);
+      LOG.debug("Article '{}' has {} pages and pocket id '{}'.", name, pageCount, pocketId);
+      return new DocumentMetadata(doc, pageCount, pocketId);
+    }
   }
 
   // When creating the book we stored the pocket ID in the publisher's metadata field.
   // We don't use EpubReader here because it will fail to parse the metadata if the CRC is
   // incorrect. This seems to happen when an epub containing illegal html elements is uploaded
-  // to Remarkable. It can however still be read.
-  private String extractPocketId(InputStream epub)
-      throws IOException, SAXException, XPathExpressionException {
-    org.w3c.dom.Document document = getOPFDocument(epub);
-    String publisherExpr = "/package/metadata/publisher/text()";
-    Node publisherNode = (Node) publisherXpath.evaluate(publisherExpr, document, NODE);
-    return publisherNode.getNodeValue().split(POCKET_ID_SEPARATOR)[1];
+  // to Remarkable. It can however still be read, since the CRCs are never verified here.
+  // The epub is read in place when it is stored without compression. Otherwise it is streamed into
+  // the working storage, which only keeps small epubs in memory. Only its OPF file is inflated.
+  private String extractPocketId(DocumentBundle bundle, String fileHash)
+      throws IOException, XMLStreamException {
+    String epubName = fileHash + ".epub";
+    Optional<DocumentBundle> nested = bundle.openNested(epubName);
+    try (DocumentBundle epub = nested.isPresent() ? nested.get() : copy(bundle, epubName);
+        InputStream opf = epub.open(OPF_PATH)) {
+      return extractPublisher(opf).split(POCKET_ID_SEPARATOR)[1];
+    }
   }
 
-  private org.w3c.dom.Document getOPFDocument(InputStream epub) throws IOException, SAXException {
-    try (ZipInputStream epubZIS = new ZipInputStream(epub)) {
-      ZipEntry opf = epubZIS.getNextEntry();
-      while (opf != null && !opf.getName().equals("OEBPS/content.opf")) {
-        opf = epubZIS.getNextEntry();
-      }
-      if (opf == null) {
-        throw new RuntimeException("Could not find content.opf");
+  private DocumentBundle copy(DocumentBundle bundle, String name) throws IOException {
+    try (InputStream in = bundle.open(name)) {
+      return storage.write(in::transferTo);
+    }
+  }
+
+  // Stops parsing at the first publisher element, which is near the start of the file.
+  private String extractPublisher(InputStream opf) throws XMLStreamException {
+    XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(opf);
+    try {
+      while (reader.hasNext()) {
+        if (reader.next() == XMLStreamReader.START_ELEMENT
+            && reader.getLocalName().equals("publisher")) {
+          return reader.getElementText();
+        }
       }
-      return documentBuilder.parse(epubZIS);
+      throw new RuntimeException("Could not find publisher in content.opf");
+    } finally {
+      reader.close();
     }
   }
 
@@ -1,8 +1,21 @@
 package nl.carosi.remarkablepocket;
 
+import static nl.carosi.remarkablepocket.SyncMetrics.FETCH;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Streams;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import nl.carosi.remarkablepocket.model.Article;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,38 +28,160 @@ import pl.codeset.pocket.read.*;
 
 final class PocketService {
   private static final Logger LOG = LoggerFactory.getLogger(PocketService.class);
+  // Pocket reports an item's status as 0 (unread), 1 (archived) or 2 (deleted).
+  private static final String UNREAD_STATUS = "0";
+  // The catalog is periodically filled from scratch in case a change was missed.
+  private static final Duration REFRESH_INTERVAL = Duration.ofDays(1);
   private final String tagFilter;
+  private final int pageSize;
   private final Pocket pocket;
+  private final ArticleCatalog catalog;
+  private final SyncMetrics metrics;
 
-  public PocketService(@Value("${pocket.tag-filter}") String tagFilter, Pocket pocket) {
+  public PocketService(
+      @Value("${pocket.tag-filter}") String tagFilter,
+      @Value("${pocket.page-size}") int pageSize,
+      Pocket pocket,
+      ArticleCatalog catalog,
+      SyncMetrics metrics) {
     this.tagFilter = tagFilter;
+    this.pageSize = pageSize;
     this.pocket = pocket;
+    this.catalog = catalog;
+    this.metrics = metrics;
+  }
+
+  // Returns the unread articles, newest first. In paged mode the articles are retrieved from
+  // Pocket one page at a time while the stream is consumed.
+  Stream<Article> getArticles() throws IOException {
+    return pageSize > 0 ? getPagedArticles() : getCatalogArticles().stream();
+  }
+
+  private Stream<Article> getPagedArticles() {
+    Iterator<List<PocketItem>> pages =
+        new AbstractIterator<>() {
+          private int offset = 0;
+          private boolean lastPage = false;
+
+          @Override
+          protected List<PocketItem> computeNext() {
+            if (lastPage) {
+              return endOfData();
+            }
+            LOG.debug("Retrieving {} unread articles from Pocket at offset {}.", pageSize, offset);
+            List<PocketItem> page;
+            try {
+              page = getItems(ItemState.unread, null, offset, pageSize).getList();
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+            offset += page.size();
+            lastPage = page.size() < pageSize;
+            return page.isEmpty() ? endOfData() : page;
+          }
+        };
+    return Streams.stream(pages)
+        .flatMap(List::stream)
+        .filter(PocketService::isComplete)
+        .map(PocketService::toArticle);
   }
 
-  List<Article> getArticles() throws IOException {
+  private List<Article> getCatalogArticles() throws IOException {
+    Instant now = Instant.now();
+    Optional<Instant> cursor = catalog.cursor(tagFilter);
+    boolean refreshDue =
+        catalog.refreshed().map(e -> e.plus(REFRESH_INTERVAL).isBefore(now)).orElse(true);
+    // The cursor is the time Pocket reported in its response, rather than the local time.
+    if (cursor.isEmpty() || refreshDue) {
+      LOG.debug("Retrieving all unread articles from Pocket.");
+      GetItemsResult all = getItems(ItemState.unread, null, 0, 0);
+      catalog.replace(toArticles(all.getList()), tagFilter, since(all), now);
+    } else {
+      LOG.debug("Retrieving changes since {} from Pocket.", cursor.get());
+      GetItemsResult changes = getItems(ItemState.all, cursor.get().getEpochSecond(), 0, 0);
+      // Unread items that Pocket couldn't resolve are left in the catalog as they are.
+      Map<Boolean, List<PocketItem>> byUnread =
+          changes.getList().stream()
+              .collect(Collectors.partitioningBy(e -> UNREAD_STATUS.equals(status(e))));
+      List<String> removed =
+          byUnread.get(false).stream().map(PocketItem::getItemId).collect(Collectors.toList());
+      catalog.apply(toArticles(byUnread.get(true)), removed, since(changes));
+    }
+    return catalog.articles();
+  }
+
+  // A count of 0 retrieves all items.
+  private GetItemsResult getItems(ItemState state, Long since, int offset, int count)
+      throws IOException {
     GetItemsCmd.Builder cmd =
         new GetItemsCmd.Builder()
             .contentType(ContentType.article)
             .detailType(DetailType.simple)
-            .state(ItemState.unread)
+            .state(state)
             .sort(Sort.newest);
     if (!tagFilter.isEmpty()) {
       cmd.tag(tagFilter);
     }
-    List<PocketItem> unreads = pocket.getItems(cmd.build()).getList();
-    return unreads.stream()
-        .map(e -> Article.of(e.getItemId(), e.getResolvedUrl(), e.getResolvedTitle()))
+    if (since != null) {
+      cmd.since(since);
+    }
+    if (count > 0) {
+      cmd.offset(offset).count(count);
+    }
+    return metrics.time(FETCH, () -> pocket.getItems(cmd.build()));
+  }
+
+  private static Instant since(GetItemsResult result) {
+    return Instant.ofEpochSecond(result.getSince());
+  }
+
+  // The status is a number, which is compared as a string so its representation doesn't matter.
+  private static String status(PocketItem item) {
+    return String.valueOf(item.getStatus());
+  }
+
+  private static boolean isComplete(PocketItem item) {
+    return item.getResolvedUrl() != null && item.getResolvedTitle() != null;
+  }
+
+  private static Article toArticle(PocketItem item) {
+    return Article.of(item.getItemId(), item.getResolvedUrl(), item.getResolvedTitle());
+  }
+
+  private static List<Article> toArticles(List<PocketItem> items) {
+    return items.stream()
+        .filter(PocketService::isComplete)
+        .map(PocketService::toArticle)
         .collect(Collectors.toList());
   }
 
-  void archive(String id) throws IOException {
-    ModifyResult res =
-        pocket.modify(new ModifyItemCmd.Builder().action(new ArchiveAction(id)).build());
-    if (res.getStatus() == 0) {
-      LOG.error(
-          "Could not archive article on Pocket: {}. Please archive it manually: https://getpocket.com/read/{}.",
-          res.getActionResults(),
-          id);
+  // Archives all articles in a single request. Returns the IDs of the articles that were archived.
+  Set<String> archive(List<String> ids) throws IOException {
+    if (ids.isEmpty()) {
+      return Set.of();
+    }
+    ModifyItemCmd.Builder cmd = new ModifyItemCmd.Builder();
+    ids.forEach(id -> cmd.action(new ArchiveAction(id)));
+    ModifyResult res = pocket.modify(cmd.build());
+    List<?> results = res.getActionResults();
+
+    Set<String> archived = new HashSet<>();
+    for (int i = 0; i < ids.size(); i++) {
+      // Pocket reports a failed action as 'false'. If the results can't be matched to the actions,
+      // fall back to the overall status.
+      boolean success =
+          results != null && results.size() == ids.size()
+              ? !Boolean.FALSE.equals(results.get(i))
+              : res.getStatus() != 0;
+      if (success) {
+        archived.add(ids.get(i));
+      } else {
+        LOG.error(
+            "Could not archive article on Pocket. Please archive it manually: https://getpocket.com/read/{}.",
+            ids.get(i));
+      }
     }
+    catalog.remove(archived);
+    return archived;
   }
 }
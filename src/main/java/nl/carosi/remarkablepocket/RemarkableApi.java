@@ -1,31 +1,35 @@
 package nl.carosi.remarkablepocket;
 
 import static java.lang.ProcessBuilder.Redirect.INHERIT;
-import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.function.Predicate.not;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Scanner;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
 import nl.carosi.remarkablepocket.model.Document;
+import nl.carosi.remarkablepocket.model.RemarkableEntry;
 import org.apache.logging.log4j.util.Strings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Value;
-import org.springframework.context.annotation.DependsOn;
 
-@DependsOn("pocket") // Forces pocket auth to happen before rm auth
-public class RemarkableApi {
+// A client that delegates to the rmapi binary.
+public class RemarkableApi implements RemarkableClient {
   private static final Logger LOG = LoggerFactory.getLogger(RemarkableApi.class);
   private static final String RMAPI_CONFIG_FILE = ".rmapi";
   private static final List<String> RMAPI_WARNING_PREFIXES =
@@ -40,110 +44,199 @@ public class RemarkableApi {
                   || new File("/run/.containerenv").exists()) // Running in Podman
               ? ("_" + System.getProperty("os.arch"))
               : "");
+  private static final Pattern LOGIN_DELIMITER = Pattern.compile("\\n|\\): ");
+  private static final AtomicInteger READERS = new AtomicInteger();
   private final String rmStorageDir;
   private final ObjectMapper objectMapper;
   private final String rmapiConfig;
+  private final boolean useSession;
+  private final SyncMetrics metrics;
+  private final Duration timeout;
+  private final CommandExecutor executor;
+  private final WorkingStorage storage;
   private String workDir;
+  // The tree cache of a reader. Null for the client that logged in, which uses rmapi's default.
+  private Path cacheDir;
+  private RmapiSession session;
 
   public RemarkableApi(
       ObjectMapper objectMapper,
-      @Value("${rm.storage-dir}") String rmStorageDir,
-      @Value("${config.dir}") String configDir) {
+      String rmStorageDir,
+      String configDir,
+      boolean useSession,
+      Duration timeout,
+      WorkingStorage storage,
+      SyncMetrics metrics) {
     this.objectMapper = objectMapper;
     this.rmStorageDir = rmStorageDir;
     this.rmapiConfig = configDir + "/" + RMAPI_CONFIG_FILE;
+    this.useSession = useSession;
+    this.metrics = metrics;
+    this.timeout = timeout;
+    this.executor = new CommandExecutor(timeout);
+    this.storage = storage;
   }
 
-  private static void logStream(InputStream src, Consumer<String> consumer) {
-    new Thread(
-            () -> {
-              Scanner sc = new Scanner(src);
-              sc.useDelimiter(Pattern.compile("\\n|\\): "));
-              while (sc.hasNext()) {
-                String token = sc.next();
-                if (token.startsWith("Enter one-time code")) {
-                  consumer.accept(token + "):");
-                } else {
-                  consumer.accept(token);
-                }
-              }
-            })
-        .start();
+  // rmapi asks for a one-time code without a trailing newline.
+  private static void logPrompt(String token, Consumer<String> consumer) {
+    consumer.accept(token.startsWith("Enter one-time code") ? token + "):" : token);
   }
 
-  private List<String> exec(String... command) {
-    return exec(List.<String[]>of(command));
+  // The commands of a client run one at a time, since rmapi overwrites its config and tree cache.
+  // Readers have their own copy of both, so they can run alongside each other.
+  private synchronized List<String> rmapi(String... args) {
+    return metrics.timeCommand(args[0], () -> execRmapi(args));
   }
 
-  private List<String> exec(List<String[]> commands) {
-    List<ProcessBuilder> builders =
-        commands.stream()
-            .map(this::createProcessBuilder)
-            .peek(builder -> LOG.debug("Executing command: {}", builder.command()))
-            .toList();
-    try {
-      List<Process> processes = ProcessBuilder.startPipeline(builders);
-      Process last = processes.get(processes.size() - 1);
-
-      last.errorReader(UTF_8)
-          .lines()
-          .filter(line -> RMAPI_WARNING_PREFIXES.stream().noneMatch(line::startsWith))
-          .forEach(LOG::error);
+  private List<String> execRmapi(String... args) {
+    if (session != null) {
+      return checkSessionOutput(args[0], session.exec(args));
+    }
+    return exec(
+        Stream.concat(Stream.of(RMAPI_EXECUTABLE, "-ni"), Arrays.stream(args))
+            .toArray(String[]::new));
+  }
 
-      return last.inputReader(UTF_8).lines().peek(LOG::debug).toList();
-    } catch (IOException e) {
-      throw new RuntimeException(e);
+  // Errors are part of the output in a session, where a failed command doesn't have an exit status.
+  // They are logged and fail the command like a non-zero exit status does. Warnings are dropped.
+  private static List<String> checkSessionOutput(String command, List<String> output) {
+    List<String> errors = output.stream().filter(line -> line.startsWith("Error")).toList();
+    if (!errors.isEmpty()) {
+      errors.forEach(LOG::error);
+      throw new IllegalStateException(
+          "rmapi session command '" + command + "' failed: " + errors.get(0));
     }
+    return output.stream()
+        .filter(line -> RMAPI_WARNING_PREFIXES.stream().noneMatch(line::startsWith))
+        .toList();
+  }
+
+  private List<String> exec(String... command) {
+    return executor
+        .exec(
+            createProcessBuilder(command),
+            line -> {
+              if (RMAPI_WARNING_PREFIXES.stream().noneMatch(line::startsWith)) {
+                LOG.error(line);
+              }
+            })
+        .stream()
+        .peek(LOG::debug)
+        .toList();
   }
 
   @PostConstruct
   void createWorkDir() throws IOException {
-    workDir = Files.createTempDirectory(null).toAbsolutePath().toString();
+    workDir = storage.createDir("rmapi").toString();
     LOG.debug("Created temporary working directory: {}.", workDir);
   }
 
+  // Commands run in the working directory, which is where rmapi stores downloaded files.
   private ProcessBuilder createProcessBuilder(String... command) {
     ProcessBuilder processBuilder = new ProcessBuilder(command);
+    if (workDir != null) {
+      processBuilder.directory(new File(workDir));
+    }
     processBuilder.environment().put("RMAPI_CONFIG", rmapiConfig);
+    if (cacheDir != null) {
+      processBuilder.environment().put("XDG_CACHE_HOME", cacheDir.toString());
+    }
     return processBuilder;
   }
 
+  // Asks for a one-time code on the console when the account isn't connected yet.
   @PostConstruct
   public void login() {
+    int exitCode =
+        executor.interact(
+            createProcessBuilder(RMAPI_EXECUTABLE, "account").redirectInput(INHERIT),
+            LOGIN_DELIMITER,
+            token -> logPrompt(token, LOG::info),
+            token -> logPrompt(token, LOG::error));
+    if (exitCode != 0) {
+      throw new RuntimeException("Could not connect to Remarkable Cloud");
+    }
+  }
+
+  // Starts a shell session that is used by all commands until it is closed.
+  @Override
+  public void openSession() {
+    if (!useSession || session != null) {
+      return;
+    }
     try {
-      Process proc =
-          createProcessBuilder(RMAPI_EXECUTABLE, "account").redirectInput(INHERIT).start();
-      logStream(proc.getInputStream(), LOG::info);
-      logStream(proc.getErrorStream(), LOG::error);
-      int exitCode = proc.waitFor();
-      if (exitCode != 0) {
-        throw new RuntimeException("Could not connect to Remarkable Cloud");
-      }
-    } catch (IOException | InterruptedException e) {
-      throw new RuntimeException("Could not connect to Remarkable Cloud", e);
+      session = RmapiSession.start(createProcessBuilder(RMAPI_EXECUTABLE), executor);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not start rmapi session", e);
     }
   }
 
-  public Path download(String articleName) {
-    exec(RMAPI_EXECUTABLE, "-ni", "get", rmStorageDir + articleName);
-    exec("mv", articleName + ".rmdoc", workDir + "/" + articleName + ".zip");
-    return Path.of(workDir, articleName + ".zip");
+  @Override
+  @PreDestroy
+  public void closeSession() {
+    if (session != null) {
+      session.close();
+      session = null;
+    }
   }
 
-  public List<String> list() {
-    return exec(
-        List.of(
-            new String[] {RMAPI_EXECUTABLE, "-ni", "ls", rmStorageDir},
-            new String[] {"grep", "^\\[f\\]"},
-            new String[] {"cut", "-b5-"}));
+  // Copies the config, which holds the tokens of the account that logged in, into a directory of
+  // the reader's own. The reader downloads documents to that directory and caches its tree there.
+  @Override
+  public RemarkableClient newReader() {
+    try {
+      Path dir = storage.createDir("rmapi-reader-" + READERS.incrementAndGet());
+      Files.copy(Path.of(rmapiConfig), dir.resolve(RMAPI_CONFIG_FILE));
+      RemarkableApi reader =
+          new RemarkableApi(
+              objectMapper, rmStorageDir, dir.toString(), useSession, timeout, storage, metrics);
+      reader.workDir = dir.toString();
+      reader.cacheDir = dir.resolve("cache");
+      return reader;
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not create rmapi reader", e);
+    }
+  }
+
+  @Override
+  public DocumentBundle download(String articleName) {
+    rmapi("get", rmStorageDir + articleName);
+    Path rmdoc = Path.of(workDir, articleName + ".rmdoc");
+    try {
+      return storage.adopt(rmdoc);
+    } catch (IOException e) {
+      deleteQuietly(rmdoc);
+      throw new UncheckedIOException("Could not store " + articleName, e);
+    }
   }
 
+  // rmapi prints one entry per line, e.g. '[f]\tname' for a document. It doesn't print IDs.
+  @Override
+  public List<RemarkableEntry> list() {
+    return rmapi("ls", rmStorageDir).stream()
+        .map(RemarkableApi::parseEntry)
+        .flatMap(Optional::stream)
+        .toList();
+  }
+
+  private static Optional<RemarkableEntry> parseEntry(String line) {
+    if (line.length() < 4) {
+      return Optional.empty();
+    }
+    String name = line.substring(4);
+    return switch (line.substring(0, 3)) {
+      case "[f]" -> Optional.of(new RemarkableEntry(RemarkableEntry.Type.DOCUMENT, name, null));
+      case "[d]" -> Optional.of(new RemarkableEntry(RemarkableEntry.Type.DIRECTORY, name, null));
+      default -> Optional.empty();
+    };
+  }
+
+  @Override
   public Document info(String articleName) {
     List<String> info =
-        exec(
-            List.of(
-                new String[] {RMAPI_EXECUTABLE, "-ni", "stat", rmStorageDir + articleName},
-                new String[] {"sed", "/{/,$!d"}));
+        rmapi("stat", rmStorageDir + articleName).stream()
+            .dropWhile(line -> !line.contains("{"))
+            .toList();
     try {
       return objectMapper.readValue(Strings.join(info, '\n'), Document.class);
     } catch (JsonProcessingException e) {
@@ -151,19 +244,54 @@ public class RemarkableApi {
     }
   }
 
+  @Override
   public void upload(Path path) {
-    exec(RMAPI_EXECUTABLE, "-ni", "put", path.toString(), rmStorageDir);
+    rmapi("put", path.toString(), rmStorageDir);
+  }
+
+  // Uploads all files in a single command by staging them in a directory of their own.
+  @Override
+  public void uploadAll(List<Path> paths) {
+    Path staging = null;
+    try {
+      staging = Files.createTempDirectory(Path.of(workDir), "upload");
+      for (Path path : paths) {
+        Path link = staging.resolve(path.getFileName());
+        try {
+          Files.createLink(link, path);
+        } catch (IOException | UnsupportedOperationException e) {
+          Files.copy(path, link);
+        }
+      }
+      rmapi("mput", "-src", staging.toString(), rmStorageDir);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not stage files for upload", e);
+    } finally {
+      if (staging != null) {
+        deleteQuietly(staging);
+      }
+    }
+  }
+
+  private static void deleteQuietly(Path path) {
+    try {
+      MoreFiles.deleteRecursively(path, RecursiveDeleteOption.ALLOW_INSECURE);
+    } catch (IOException e) {
+      LOG.debug("Could not delete: {}.", path, e);
+    }
   }
 
+  @Override
   public void delete(String articleName) {
-    exec(RMAPI_EXECUTABLE, "-ni", "rm", rmStorageDir + articleName);
+    rmapi("rm", rmStorageDir + articleName);
   }
 
+  @Override
   public void createDir(String path) {
     List<String> parts = Arrays.stream(path.split("/")).filter(not(String::isEmpty)).toList();
     for (int i = 1; i <= parts.size(); i++) {
       String subdir = String.join("/", parts.subList(0, i));
-      exec(RMAPI_EXECUTABLE, "-ni", "mkdir", subdir);
+      rmapi("mkdir", subdir);
     }
   }
 }
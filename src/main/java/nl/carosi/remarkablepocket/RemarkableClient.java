@@ -0,0 +1,38 @@
+package nl.carosi.remarkablepocket;
+
+import java.nio.file.Path;
+import java.util.List;
+import nl.carosi.remarkablepocket.model.Document;
+import nl.carosi.remarkablepocket.model.RemarkableEntry;
+
+// The operations on the Remarkable Cloud used during a sync. Documents are addressed by name
+// within the storage directory.
+interface RemarkableClient {
+  // Keeps state between calls until the session is closed. Does nothing when sessions are
+  // disabled.
+  void openSession();
+
+  void closeSession();
+
+  // Returns a client that reads documents alongside this one and the other readers. Its sessions
+  // are opened and closed separately. Clients that can be used concurrently return themselves.
+  default RemarkableClient newReader() {
+    return this;
+  }
+
+  List<RemarkableEntry> list();
+
+  Document info(String articleName);
+
+  // Downloads the document's files as a zip archive. The name of the first entry starts with the
+  // document ID. The bundle must be closed once it has been read.
+  DocumentBundle download(String articleName);
+
+  void upload(Path path);
+
+  void uploadAll(List<Path> paths);
+
+  void delete(String articleName);
+
+  void createDir(String path);
+}
@@ -2,34 +2,88 @@ package nl.carosi.remarkablepocket;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
 import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 import nl.carosi.remarkablepocket.model.DocumentMetadata;
+import nl.carosi.remarkablepocket.model.Download;
+import nl.carosi.remarkablepocket.model.RemarkableEntry;
+import nl.carosi.remarkablepocket.model.SyncedArticle;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 
 final class RemarkableService {
   private static final Logger LOG = LoggerFactory.getLogger(RemarkableService.class);
-  private final RemarkableApi rmapi;
+  private final RemarkableClient rmapi;
   private final MetadataProvider metadataProvider;
+  private final SyncJournal journal;
   private final String rmStorageDir;
+  private final boolean batchUpload;
+  private final ExecutorService executor;
+  // The clients that read documents concurrently, one per worker. A worker takes a reader that
+  // is idle, so no reader is used by two workers at once.
+  private final List<RemarkableClient> readers;
+  // The IDs of the documents whose metadata was read during this sync, by name. The listings of
+  // rmapi don't contain IDs, so these are used instead of retrieving them one document at a time.
+  private final Map<String, String> documentIds = new HashMap<>();
 
   public RemarkableService(
-      RemarkableApi rmapi,
+      RemarkableClient rmapi,
       MetadataProvider metadataProvider,
-      @Value("${rm.storage-dir}") String rmStorageDir) {
+      SyncJournal journal,
+      @Value("${rm.storage-dir}") String rmStorageDir,
+      @Value("${rm.concurrency}") int concurrency,
+      @Value("${rm.batch-upload}") boolean batchUpload) {
     if (!rmStorageDir.endsWith("/")) {
       rmStorageDir += "/";
     }
     checkArgument(
         rmStorageDir.matches("^/([^:/\\\\*\"?|<>.']+/)+$"),
         "Invalid Remarkable storage dir. A valid example is: '/Articles/Pocket/'.");
+    checkArgument(concurrency > 0, "Remarkable concurrency must be at least 1.");
     this.rmapi = rmapi;
     this.metadataProvider = metadataProvider;
+    this.journal = journal;
     this.rmStorageDir = rmStorageDir;
+    this.batchUpload = batchUpload;
+    this.readers =
+        concurrency == 1
+            ? List.of(rmapi)
+            : IntStream.range(0, concurrency).mapToObj(i -> rmapi.newReader()).toList();
+    this.executor =
+        Executors.newFixedThreadPool(
+            concurrency,
+            new ThreadFactoryBuilder().setNameFormat("rm-metadata-%d").setDaemon(true).build());
+  }
+
+  private static <T> T await(Future<T> future) throws ExecutionException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while retrieving document metadata", e);
+    }
   }
 
   @PostConstruct
@@ -37,32 +91,203 @@ final class RemarkableService {
     rmapi.createDir(rmStorageDir);
   }
 
-  List<String> listDocumentNames() {
-    return rmapi.list();
+  void openSession() {
+    rmapi.openSession();
+    otherReaders().forEach(RemarkableClient::openSession);
+  }
+
+  void closeSession() {
+    otherReaders().forEach(RemarkableClient::closeSession);
+    rmapi.closeSession();
+  }
+
+  private Stream<RemarkableClient> otherReaders() {
+    return readers.stream().filter(reader -> reader != rmapi);
+  }
+
+  // Brings the journal in line with the documents on the Remarkable, and returns their names.
+  // Documents are matched by ID when the listing contains it, and by name otherwise. Articles that
+  // were recorded without an ID get the ID of their document once its metadata was read. Only when
+  // documents are both missing and unknown are the unknown documents' IDs retrieved, to detect
+  // documents that were renamed on the device.
+  List<String> reconcileJournal() {
+    List<RemarkableEntry> documents = listDocuments();
+    Map<String, RemarkableEntry> byId = new HashMap<>();
+    Set<String> names = new HashSet<>();
+    for (RemarkableEntry document : documents) {
+      names.add(document.name());
+      if (document.id() != null) {
+        byId.put(document.id(), document);
+      }
+    }
+
+    Set<String> journalTitles = new HashSet<>();
+    Map<String, SyncedArticle> missingById = new HashMap<>();
+    List<SyncedArticle> missing = new ArrayList<>();
+    for (SyncedArticle article : journal.articles()) {
+      RemarkableEntry listed = article.documentId() == null ? null : byId.get(article.documentId());
+      if (listed != null) {
+        journalTitles.add(listed.name());
+        if (!listed.name().equals(article.title())) {
+          rename(article, listed.name());
+        }
+      } else if (names.contains(article.title())) {
+        journalTitles.add(article.title());
+        String documentId = documentIds.get(article.title());
+        if (article.documentId() == null && documentId != null) {
+          journal.setDocumentId(article.pocketId(), documentId);
+        }
+      } else {
+        missing.add(article);
+        if (article.documentId() != null) {
+          missingById.put(article.documentId(), article);
+        }
+      }
+    }
+
+    if (!missingById.isEmpty()) {
+      for (RemarkableEntry document : documents) {
+        if (document.id() != null || journalTitles.contains(document.name())) {
+          continue;
+        }
+        String documentId =
+            documentIds.computeIfAbsent(document.name(), name -> rmapi.info(name).id());
+        SyncedArticle renamed = missingById.remove(documentId);
+        if (renamed != null) {
+          rename(renamed, document.name());
+          missing.remove(renamed);
+        }
+      }
+    }
+    for (SyncedArticle article : missing) {
+      LOG.debug("Article '{}' was removed from Remarkable.", article.title());
+      journal.remove(article.pocketId());
+    }
+    return documents.stream().map(RemarkableEntry::name).toList();
+  }
+
+  private void rename(SyncedArticle article, String name) {
+    LOG.debug("Article '{}' was renamed to '{}' on Remarkable.", article.title(), name);
+    journal.rename(article.pocketId(), name);
+  }
+
+  private List<RemarkableEntry> listDocuments() {
+    return rmapi.list().stream().filter(RemarkableEntry::isDocument).toList();
+  }
+
+  Set<String> syncedPocketIds() {
+    return journal.articles().stream().map(SyncedArticle::pocketId).collect(Collectors.toSet());
+  }
+
+  @PreDestroy
+  void shutdown() {
+    executor.shutdownNow();
   }
 
   List<DocumentMetadata> listReadDocuments() {
-    return rmapi.list().stream()
-        .map(metadataProvider::getMetadata)
-        .filter(Objects::nonNull)
+    // Submit all documents first so they are processed concurrently, then collect the results in
+    // list order.
+    List<String> names = listDocuments().stream().map(RemarkableEntry::name).toList();
+    BlockingQueue<RemarkableClient> idle = new LinkedBlockingQueue<>(readers);
+    List<Future<DocumentMetadata>> futures =
+        names.stream()
+            .map(
+                name ->
+                    executor.submit(
+                        () -> {
+                          RemarkableClient reader = idle.take();
+                          try {
+                            return metadataProvider.getMetadata(reader, name);
+                          } finally {
+                            idle.add(reader);
+                          }
+                        }))
+            .toList();
+    List<DocumentMetadata> documents = new ArrayList<>();
+    boolean complete = true;
+    for (int i = 0; i < futures.size(); i++) {
+      try {
+        DocumentMetadata meta = await(futures.get(i));
+        if (meta != null) {
+          documents.add(meta);
+        }
+      } catch (ExecutionException e) {
+        // The document is skipped until the next sync, e.g. when a command timed out.
+        LOG.error(
+            "Could not retrieve metadata of '{}': {}", names.get(i), e.getCause().getMessage());
+        LOG.debug("Stack trace:", e.getCause());
+        complete = false;
+      }
+    }
+    documentIds.clear();
+    documents.forEach(meta -> documentIds.put(meta.doc().name(), meta.doc().id()));
+    // The metadata of the documents that were deleted since the previous sync is no longer needed.
+    // It is kept when documents are missing from this sync, e.g. because they couldn't be read or
+    // the listing was empty, which can also mean the listing failed.
+    if (complete && !documents.isEmpty()) {
+      metadataProvider.retainCached(new HashSet<>(documentIds.values()));
+    }
+    return documents.stream()
         .peek(this::logPages)
         // Current page starts counting at 0.
         .filter(e -> e.doc().currentPage() + 1 == e.pageCount())
         .toList();
   }
 
-  void upload(List<Path> paths) {
-    LOG.info("Uploading {} article(s) to Remarkable.", paths.size());
-    int total = paths.size();
-    for (int i = 0; i < total; i++) {
-      Path path = paths.get(i);
-      LOG.info("({}/{}) Uploading: '{}'.", i + 1, total, path.getFileName());
-      upload(path);
+  // Returns the downloads that are present on the Remarkable after uploading, and records them in
+  // the journal.
+  List<Download> upload(List<Download> downloads) {
+    LOG.info("Uploading {} article(s) to Remarkable.", downloads.size());
+    int total = downloads.size();
+    // Failed uploads are logged. Which documents are on the Remarkable is checked afterwards, since
+    // a command can fail after some documents were uploaded, e.g. when it timed out.
+    if (batchUpload && total > 1) {
+      try {
+        rmapi.uploadAll(downloads.stream().map(Download::path).toList());
+      } catch (RuntimeException e) {
+        logUploadFailure(total + " articles", e);
+      }
+    } else {
+      for (int i = 0; i < total; i++) {
+        Path path = downloads.get(i).path();
+        LOG.info("({}/{}) Uploading: '{}'.", i + 1, total, path.getFileName());
+        upload(path);
+      }
     }
+
+    Map<String, RemarkableEntry> documents = new HashMap<>();
+    listDocuments().forEach(e -> documents.put(e.name(), e));
+    List<Download> uploaded = new ArrayList<>();
+    for (Download download : downloads) {
+      RemarkableEntry document = documents.get(MoreFiles.getNameWithoutExtension(download.path()));
+      if (document != null) {
+        uploaded.add(download);
+        record(download, document);
+      } else {
+        LOG.error("Failed to upload: '{}'.", download.path().getFileName());
+      }
+    }
+    LOG.info("Uploaded {} of {} article(s).", uploaded.size(), total);
+    return uploaded;
+  }
+
+  // The document ID is only known when the listing contains it. Otherwise it is recorded when the
+  // journal is reconciled after the document's metadata was read.
+  private void record(Download download, RemarkableEntry document) {
+    String contentHash = null;
+    try {
+      contentHash = MoreFiles.asByteSource(download.path()).hash(Hashing.sha256()).toString();
+    } catch (IOException e) {
+      LOG.debug("Could not hash '{}'.", download.path(), e);
+    }
+    journal.record(
+        new SyncedArticle(
+            download.article().id(), document.name(), document.id(), contentHash, Instant.now()));
   }
 
-  void delete(String name) {
-    rmapi.delete(name);
+  void delete(DocumentMetadata meta) {
+    rmapi.delete(meta.doc().name());
+    journal.remove(meta.pocketId());
   }
 
   private void logPages(DocumentMetadata meta) {
@@ -74,6 +299,15 @@ final class RemarkableService {
   }
 
   private void upload(Path path) {
-    rmapi.upload(path);
+    try {
+      rmapi.upload(path);
+    } catch (RuntimeException e) {
+      logUploadFailure("'" + path.getFileName() + "'", e);
+    }
+  }
+
+  private static void logUploadFailure(String what, RuntimeException e) {
+    LOG.error("Could not upload {}: {}", what, e.getMessage());
+    LOG.debug("Stack trace:", e);
   }
 }
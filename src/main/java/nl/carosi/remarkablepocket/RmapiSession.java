@@ -0,0 +1,104 @@
+package nl.carosi.remarkablepocket;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// A long-lived rmapi shell, so the Remarkable Cloud tree is only refreshed once per session.
+// Every command is followed by a 'pwd'. The session never changes directory, so the '/' printed
+// by that command marks the end of the preceding command's output.
+final class RmapiSession implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(RmapiSession.class);
+  private static final String FRAME_COMMAND = "pwd";
+  private static final String FRAME_END = "/";
+  // The shell prints its prompt (e.g. '[/]>') without a trailing newline.
+  private static final Pattern PROMPT = Pattern.compile("^(\\[[^\\]\\t]*\\]> ?)+");
+
+  private final Process process;
+  private final CommandExecutor executor;
+  private final Writer stdin;
+  private final BufferedReader stdout;
+
+  private RmapiSession(Process process, CommandExecutor executor) {
+    this.process = process;
+    this.executor = executor;
+    this.stdin = process.outputWriter(UTF_8);
+    this.stdout = process.inputReader(UTF_8);
+  }
+
+  static RmapiSession start(ProcessBuilder builder, CommandExecutor executor) throws IOException {
+    // Merge stderr into stdout so that errors stay in order with the output they belong to.
+    Process process = builder.redirectErrorStream(true).start();
+    LOG.debug("Started rmapi session: {}.", builder.command());
+    RmapiSession session = new RmapiSession(process, executor);
+    // Wait until the initial tree refresh has completed.
+    session.exec();
+    return session;
+  }
+
+  private static String quote(String arg) {
+    return '"' + arg.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+  }
+
+  // A command that doesn't complete before the deadline kills the session.
+  synchronized List<String> exec(String... args) {
+    String command =
+        List.of(args).stream().map(RmapiSession::quote).collect(Collectors.joining(" "));
+    return executor.withDeadline(
+        process, "rmapi session command '" + command + "'", () -> execImpl(command));
+  }
+
+  private List<String> execImpl(String command) {
+    try {
+      if (!command.isEmpty()) {
+        LOG.debug("Executing session command: {}", command);
+        stdin.write(command + "\n");
+      }
+      stdin.write(FRAME_COMMAND + "\n");
+      stdin.flush();
+
+      List<String> lines = new ArrayList<>();
+      String line;
+      while ((line = stdout.readLine()) != null) {
+        line = PROMPT.matcher(line).replaceFirst("");
+        if (line.equals(FRAME_END)) {
+          return lines;
+        }
+        LOG.trace(line);
+        lines.add(line);
+      }
+      throw new IllegalStateException(
+          "rmapi session terminated unexpectedly while executing: " + command);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not communicate with rmapi session", e);
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    try {
+      stdin.write("exit\n");
+      stdin.close();
+      if (!process.waitFor(5, TimeUnit.SECONDS)) {
+        CommandExecutor.kill(process);
+      }
+    } catch (IOException e) {
+      CommandExecutor.kill(process);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      CommandExecutor.kill(process);
+    }
+    LOG.debug("Closed rmapi session.");
+  }
+}
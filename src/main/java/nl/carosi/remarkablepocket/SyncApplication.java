@@ -1,40 +1,57 @@
 package nl.carosi.remarkablepocket;
 
+import static org.springframework.boot.Banner.Mode.OFF;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
 import java.io.IOException;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import nl.siegmann.epublib.epub.EpubReader;
-import nl.siegmann.epublib.epub.EpubWriter;
+import java.time.Duration;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.WebApplicationType;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.builder.SpringApplicationBuilder;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.DependsOn;
 import org.springframework.context.annotation.Import;
-import org.springframework.retry.annotation.EnableRetry;
-import org.springframework.scheduling.annotation.EnableScheduling;
 import pl.codeset.pocket.Pocket;
 
 @SpringBootApplication
-@EnableScheduling
-@EnableRetry
 @Import({
+  ArticleCatalog.class,
   ArticleDownloader.class,
   ArticleValidator.class,
   DownloadService.class,
-  EpubReader.class,
-  EpubWriter.class,
+  EpubCache.class,
+  EpubPressGenerator.class,
+  EpubRewriter.class,
+  ImageOptimizer.class,
+  LocalEpubGenerator.class,
+  MetadataCache.class,
   MetadataProvider.class,
   PocketService.class,
   PocketAuthenticator.class,
-  RemarkableApi.class,
   RemarkableService.class,
+  SyncJournal.class,
+  SyncMetrics.class,
+  SyncEndpoint.class,
   SyncService.class,
+  WorkingStorage.class,
 })
 public class SyncApplication {
+  // Only used for AOT processing, which stops the application once its context is prepared. The
+  // application is started by SyncCommand.
+  public static void main(String... args) {
+    builder(WebApplicationType.NONE).run(args);
+  }
 
-  @Bean
-  DocumentBuilder documentBuilder() throws ParserConfigurationException {
-    DocumentBuilderFactory builderFactory = DocumentBuilderFactory.newInstance();
-    return builderFactory.newDocumentBuilder();
+  // The application is always identified as SyncApplication, so the context initializer generated
+  // by AOT processing is found at runtime.
+  static SpringApplicationBuilder builder(WebApplicationType webApplicationType) {
+    return new SpringApplicationBuilder(SyncApplication.class)
+        .main(SyncApplication.class)
+        .logStartupInfo(false)
+        .profiles("default")
+        .bannerMode(OFF)
+        .web(webApplicationType);
   }
 
   @Bean
@@ -45,4 +62,35 @@ public class SyncApplication {
       throw new RuntimeException("Could not connect to Pocket", e);
     }
   }
+
+  @Bean
+  @DependsOn("pocket") // Forces pocket auth to happen before rm auth
+  RemarkableClient remarkableClient(
+      ObjectMapper objectMapper,
+      @Value("${rm.client}") String client,
+      @Value("${rm.storage-dir}") String rmStorageDir,
+      @Value("${config.dir}") String configDir,
+      @Value("${rm.session}") boolean useSession,
+      @Value("${rm.timeout}") Duration timeout,
+      @Value("${rm.cloud-url}") String cloudUrl,
+      @Value("${rm.auth-url}") String authUrl,
+      WorkingStorage storage,
+      SyncMetrics metrics) {
+    return switch (client) {
+      case "rmapi" ->
+          new RemarkableApi(
+              objectMapper, rmStorageDir, configDir, useSession, timeout, storage, metrics);
+      case "native" ->
+          new CloudClient(
+              objectMapper,
+              rmStorageDir,
+              configDir,
+              useSession,
+              cloudUrl,
+              authUrl,
+              storage,
+              metrics);
+      default -> throw new IllegalArgumentException("Unknown Remarkable client: " + client);
+    };
+  }
 }
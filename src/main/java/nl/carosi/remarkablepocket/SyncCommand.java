@@ -4,6 +4,7 @@ import static java.util.Map.entry;
 import static nl.carosi.remarkablepocket.ConnectivityChecker.ensureConnected;
 import static org.springframework.boot.Banner.Mode.OFF;
 import static org.springframework.boot.WebApplicationType.NONE;
+import static org.springframework.boot.WebApplicationType.SERVLET;
 import static picocli.CommandLine.Help.Visibility.ALWAYS;
 
 import com.google.common.io.MoreFiles;
@@ -12,9 +13,17 @@ import java.io.IOException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.stream.Stream;
+import org.slf4j.MDC;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.WebApplicationType;
 import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ApplicationContextInitializer;
+import org.springframework.context.ConfigurableApplicationContext;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
@@ -49,6 +58,15 @@ class SyncCommand implements Callable<Integer> {
       defaultValue = "")
   private String tagFilter;
 
+  @Option(
+      names = {"--pocket-page-size"},
+      description =
+          "Retrieve Pocket articles in pages of this size, only as many as needed, instead of keeping a local copy of all unread articles.",
+      arity = "1",
+      defaultValue = "0",
+      showDefaultValue = ALWAYS)
+  private int pocketPageSize;
+
   @Option(
       names = {"-n", "--no-archive"},
       description = "Don't archive read articles.",
@@ -71,6 +89,14 @@ class SyncCommand implements Callable<Integer> {
       showDefaultValue = ALWAYS)
   private String interval;
 
+  @Option(
+      names = {"--min-interval"},
+      description =
+          "The interval after a synchronization that archived or uploaded articles. While nothing changes, the interval doubles up to --interval. Defaults to --interval, which turns this off.",
+      arity = "1",
+      defaultValue = "")
+  private String minInterval;
+
   @Option(
       names = {"-a", "--config-dir"},
       description = "The directory in which to store the configuration files.",
@@ -79,6 +105,22 @@ class SyncCommand implements Callable<Integer> {
       hidden = true)
   private String configDir;
 
+  @Option(
+      names = {"--accounts-dir"},
+      description =
+          "Synchronize an account for each subdirectory of this directory, instead of a single account.",
+      arity = "1",
+      defaultValue = "")
+  private String accountsDir;
+
+  @Option(
+      names = {"--sync-workers"},
+      description = "The number of accounts to synchronize concurrently.",
+      arity = "1",
+      defaultValue = "1",
+      showDefaultValue = ALWAYS)
+  private int syncWorkers;
+
   @Option(
       names = {"-d", "--storage-dir"},
       description =
@@ -88,6 +130,153 @@ class SyncCommand implements Callable<Integer> {
       showDefaultValue = ALWAYS)
   private String storageDir;
 
+  @Option(
+      names = {"--rm-client"},
+      description =
+          "How to connect to the Remarkable Cloud: 'rmapi' uses the rmapi binary, 'native' connects directly.",
+      arity = "1",
+      defaultValue = "rmapi",
+      showDefaultValue = ALWAYS)
+  private String rmClient;
+
+  @Option(
+      names = {"--rm-cloud-url"},
+      description = "The Remarkable Cloud sync endpoint used by the native client.",
+      arity = "1",
+      defaultValue = "https://internal.cloud.remarkable.com",
+      hidden = true)
+  private String rmCloudUrl;
+
+  @Option(
+      names = {"--rm-auth-url"},
+      description = "The Remarkable Cloud authentication endpoint used by the native client.",
+      arity = "1",
+      defaultValue = "https://webapp-prod.cloud.remarkable.engineering",
+      hidden = true)
+  private String rmAuthUrl;
+
+  @Option(
+      names = {"--rm-session"},
+      description = "Keep a single Remarkable Cloud session open during each synchronization.",
+      arity = "0")
+  private boolean rmSession;
+
+  @Option(
+      names = {"--rm-timeout"},
+      description = "The time after which an rmapi command is killed.",
+      arity = "1",
+      defaultValue = "5m",
+      showDefaultValue = ALWAYS)
+  private String rmTimeout;
+
+  @Option(
+      names = {"--rm-batch-upload"},
+      description = "Upload all new articles to the Remarkable in a single batch.",
+      arity = "0")
+  private boolean rmBatchUpload;
+
+  @Option(
+      names = {"--rm-concurrency"},
+      description =
+          "The number of Remarkable documents to process concurrently. With --rm-client rmapi, each worker runs rmapi with its own copy of the config.",
+      arity = "1",
+      defaultValue = "1",
+      showDefaultValue = ALWAYS)
+  private int rmConcurrency;
+
+  @Option(
+      names = {"--download-workers"},
+      description = "The number of articles to download from Pocket concurrently.",
+      arity = "1",
+      defaultValue = "1",
+      showDefaultValue = ALWAYS)
+  private int downloadWorkers;
+
+  @Option(
+      names = {"-g", "--epub-generator"},
+      description =
+          "How to create epubs: 'epub-press' uses the epub.press service, 'local' extracts the article itself.",
+      arity = "1",
+      defaultValue = EpubPressGenerator.NAME,
+      showDefaultValue = ALWAYS)
+  private String epubGenerator;
+
+  @Option(
+      names = {"--epub-press-url"},
+      description = "The epub.press API endpoint used to create books.",
+      arity = "1",
+      defaultValue = "https://epub.press/api/v1/books",
+      hidden = true)
+  private String epubPressUrl;
+
+  @Option(
+      names = {"--image-quality"},
+      description =
+          "The JPEG quality (1-100) of images in articles. Images are also converted to grayscale and downscaled to fit the display. Images are not optimized when 0.",
+      arity = "1",
+      defaultValue = "75",
+      showDefaultValue = ALWAYS)
+  private int imageQuality;
+
+  @Option(
+      names = {"--image-budget"},
+      description =
+          "The maximum size in megabytes of the images in an article. Images are downscaled further to fit.",
+      arity = "1",
+      defaultValue = "5",
+      showDefaultValue = ALWAYS)
+  private int imageBudget;
+
+  @Option(
+      names = {"--image-color"},
+      description = "Keep the colors of images, e.g. for the Remarkable Paper Pro.",
+      arity = "0")
+  private boolean imageColor;
+
+  @Option(
+      names = {"--epub-cache-size"},
+      description =
+          "The maximum size in megabytes of the cache of generated epubs, which are reused when an article is downloaded again. Disabled when 0.",
+      arity = "1",
+      defaultValue = "100",
+      showDefaultValue = ALWAYS)
+  private int epubCacheSize;
+
+  @Option(
+      names = {"--storage-budget"},
+      description =
+          "The maximum size in megabytes of the documents from the Remarkable that are stored on disk while they are read. Documents that are no longer used are deleted when it is exceeded.",
+      arity = "1",
+      defaultValue = "200",
+      showDefaultValue = ALWAYS)
+  private int storageBudget;
+
+  @Option(
+      names = {"--memory-document-size"},
+      description =
+          "Documents from the Remarkable up to this size in kilobytes are kept in memory instead of on disk.",
+      arity = "1",
+      defaultValue = "1024",
+      showDefaultValue = ALWAYS)
+  private int memoryDocumentSize;
+
+  @Option(
+      names = {"--metrics-port"},
+      description = "Serve sync metrics on this port at /actuator/metrics. Disabled when 0.",
+      arity = "1",
+      defaultValue = "0",
+      showDefaultValue = ALWAYS)
+  private int metricsPort;
+
+  @Option(
+      names = {"--metrics-address"},
+      description =
+          "The address on which sync metrics are served. Use 0.0.0.0 to serve them on all interfaces, e.g. from a Docker container.",
+      arity = "1",
+      defaultValue = "127.0.0.1",
+      showDefaultValue = ALWAYS)
+  private String metricsAddress;
+
   @Option(
       names = {"-v", "--verbose"},
       description = "Enable debug logging.",
@@ -153,29 +342,127 @@ class SyncCommand implements Callable<Integer> {
       createConfigDir(configPath);
     }
 
-    // Handle sigterm (^C)
-    Runtime.getRuntime().addShutdownHook(new Thread(() -> Runtime.getRuntime().halt(1)));
+    // Handle sigterm (^C). Invalidated articles are stored first, since halting skips the other
+    // shutdown hooks.
+    Runtime.getRuntime()
+        .addShutdownHook(
+            new Thread(
+                () -> {
+                  ArticleValidator.flushAll();
+                  Runtime.getRuntime().halt(1);
+                }));
 
     Map<String, Object> cliProperties =
         Map.ofEntries(
             entry("config.dir", configDir),
+            entry("sync.account", ""),
             entry("rm.storage-dir", storageDir),
             entry("rm.article-limit", articleLimit),
+            entry("rm.client", rmClient),
+            entry("rm.cloud-url", rmCloudUrl),
+            entry("rm.auth-url", rmAuthUrl),
+            entry("rm.session", Boolean.toString(rmSession)),
+            entry("rm.timeout", "PT" + rmTimeout),
+            entry("rm.concurrency", rmConcurrency),
+            entry("rm.batch-upload", Boolean.toString(rmBatchUpload)),
             entry("sync.interval", "PT" + interval),
-            entry("sync.run-once", Boolean.toString(runOnce)),
+            // Follows the interval of the account when not set.
+            entry(
+                "sync.min-interval",
+                minInterval.isEmpty() ? "${sync.interval}" : "PT" + minInterval),
+            entry("download.workers", downloadWorkers),
+            entry("epub.generator", epubGenerator),
+            entry("epub.press-url", epubPressUrl),
+            entry("epub.cache-size", epubCacheSize),
+            entry("epub.image-quality", imageQuality),
+            entry("epub.image-budget", imageBudget),
+            entry("epub.image-color", Boolean.toString(imageColor)),
+            entry("storage.budget", storageBudget),
+            entry("storage.memory-bundle-size", memoryDocumentSize),
             entry("pocket.archive-read", Boolean.toString(!noArchive)),
             entry("pocket.tag-filter", tagFilter),
+            entry("pocket.page-size", pocketPageSize),
             entry("pocket.server.port", port),
+            // Only the actuator endpoints are served, by the management server on its own address.
+            entry("server.port", -1),
+            entry("management.server.port", metricsPort),
+            entry("management.server.address", metricsAddress),
             entry("logging.level." + this.getClass().getPackageName(), verbose ? "TRACE" : "INFO"));
 
-    new SpringApplicationBuilder(SyncApplication.class)
-        .logStartupInfo(false)
-        .profiles("default")
-        .bannerMode(OFF)
-        .web(NONE)
-        .properties(cliProperties)
-        .run();
+    WebApplicationType webApplicationType = metricsPort > 0 ? SERVLET : NONE;
+    SyncScheduler scheduler = new SyncScheduler(accountsDir.isEmpty() ? 1 : syncWorkers, runOnce);
+    // Makes the scheduler available to the sync endpoint.
+    ApplicationContextInitializer<ConfigurableApplicationContext> registerScheduler =
+        context -> context.getBeanFactory().registerSingleton("syncScheduler", scheduler);
+    if (accountsDir.isEmpty()) {
+      if (metricsPort > 0) {
+        // The AOT-processed context is generated without a web server.
+        System.clearProperty("spring.aot.enabled");
+      }
+      ConfigurableApplicationContext context =
+          SyncApplication.builder(webApplicationType)
+              .initializers(registerScheduler)
+              .properties(cliProperties)
+              .run();
+      scheduler.add("", context.getBean(SyncService.class));
+      scheduler.start(() -> exit(context));
+      return 0;
+    }
 
+    List<Path> accountPaths = listAccounts(Path.of(replaceUserHome(accountsDir)));
+    if (reset) {
+      accountPaths.forEach(this::resetConfiguration);
+    }
+    // The AOT-processed context is generated for a single account.
+    System.clearProperty("spring.aot.enabled");
+    ConfigurableApplicationContext parent =
+        new SpringApplicationBuilder(AccountsApplication.class)
+            .logStartupInfo(false)
+            .bannerMode(OFF)
+            .web(webApplicationType)
+            .initializers(registerScheduler)
+            .properties(cliProperties)
+            .run();
+    for (Path accountPath : accountPaths) {
+      String account = accountPath.getFileName().toString();
+      Map<String, Object> properties = new HashMap<>(cliProperties);
+      properties.put("config.dir", accountPath.toString());
+      properties.put("sync.account", account);
+      // Properties in the account.properties file of an account override the command line.
+      properties.put(
+          "spring.config.additional-location",
+          "optional:file:" + accountPath.resolve("account.properties"));
+      // Prefixes the log messages, e.g. of the authorization, with the account.
+      MDC.put("account", account);
+      try {
+        ConfigurableApplicationContext context =
+            SyncApplication.builder(NONE).parent(parent).properties(properties).run();
+        scheduler.add(account, context.getBean(SyncService.class));
+      } catch (RuntimeException e) {
+        // The other accounts are still synchronized.
+        System.err.printf("Failed to start account %s: %s%n", account, e.getMessage());
+      } finally {
+        MDC.remove("account");
+      }
+    }
+    if (scheduler.accounts().isEmpty()) {
+      System.err.printf("No accounts could be started from: %s%n", accountsDir);
+      return 1;
+    }
+    scheduler.start(() -> exit(parent));
     return 0;
   }
+
+  private static void exit(ConfigurableApplicationContext context) {
+    // Closing the parent context also closes the contexts of the accounts.
+    System.exit(SpringApplication.exit(context, () -> 0));
+  }
+
+  private static List<Path> listAccounts(Path accountsPath) {
+    try (Stream<Path> paths = Files.list(accountsPath)) {
+      return paths.filter(Files::isDirectory).sorted().toList();
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to list accounts in: " + accountsPath, e);
+    }
+  }
 }
@@ -0,0 +1,33 @@
+package nl.carosi.remarkablepocket;
+
+import org.springframework.boot.actuate.endpoint.InvalidEndpointRequestException;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+
+// Starts a sync on 'POST /actuator/sync', or of a single account on 'POST
+// /actuator/sync/<account>'.
+// It is served on the metrics port.
+@Endpoint(id = "sync")
+@ConditionalOnWebApplication
+final class SyncEndpoint {
+  private final SyncScheduler scheduler;
+
+  public SyncEndpoint(SyncScheduler scheduler) {
+    this.scheduler = scheduler;
+  }
+
+  @WriteOperation
+  public void syncAll() {
+    scheduler.accounts().forEach(scheduler::trigger);
+  }
+
+  @WriteOperation
+  public void sync(@Selector String account) {
+    if (!scheduler.accounts().contains(account)) {
+      throw new InvalidEndpointRequestException("Unknown account: " + account, "Unknown account");
+    }
+    scheduler.trigger(account);
+  }
+}
@@ -0,0 +1,152 @@
+package nl.carosi.remarkablepocket;
+
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.*;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import nl.carosi.remarkablepocket.model.Document;
+import nl.carosi.remarkablepocket.model.SyncedArticle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+// Records which Pocket article each uploaded document belongs to, so synced articles can be
+// identified without opening the documents. Access is synchronized because metadata is retrieved
+// from several threads at once.
+public class SyncJournal {
+  private static final Logger LOG = LoggerFactory.getLogger(SyncJournal.class);
+  private static final String DB_NAME = "journal.db";
+  private final Path dbPath;
+  private Connection conn;
+
+  public SyncJournal(@Value("${config.dir}") Path configDir) {
+    this.dbPath = configDir.resolve(DB_NAME);
+    initializeDatabase();
+  }
+
+  private void initializeDatabase() {
+    try {
+      Files.createDirectories(dbPath.getParent());
+      String url = "jdbc:sqlite:" + dbPath;
+      conn = DriverManager.getConnection(url);
+
+      String sql =
+          "CREATE TABLE IF NOT EXISTS synced_articles ("
+              + "pocket_id TEXT PRIMARY KEY, "
+              + "title TEXT NOT NULL, "
+              + "document_id TEXT, "
+              + "content_hash TEXT, "
+              + "uploaded INTEGER NOT NULL)";
+      try (Statement stmt = conn.createStatement()) {
+        stmt.execute(sql);
+      }
+      LOG.debug("Sync journal initialized at: {}", dbPath);
+    } catch (SQLException | IOException e) {
+      LOG.error("Error initializing sync journal", e);
+    }
+  }
+
+  public synchronized void record(SyncedArticle article) {
+    String sql =
+        "INSERT OR REPLACE INTO synced_articles"
+            + "(pocket_id, title, document_id, content_hash, uploaded) VALUES(?, ?, ?, ?, ?)";
+    try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+      pstmt.setString(1, article.pocketId());
+      pstmt.setString(2, article.title());
+      pstmt.setString(3, article.documentId());
+      pstmt.setString(4, article.contentHash());
+      pstmt.setLong(5, article.uploaded().getEpochSecond());
+      pstmt.executeUpdate();
+      LOG.debug("Recorded synced article: {}", article.title());
+    } catch (SQLException e) {
+      LOG.error("Error recording synced article", e);
+    }
+  }
+
+  public synchronized List<SyncedArticle> articles() {
+    String sql =
+        "SELECT pocket_id, title, document_id, content_hash, uploaded FROM synced_articles";
+    List<SyncedArticle> articles = new ArrayList<>();
+    try (Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery(sql)) {
+      while (rs.next()) {
+        articles.add(toSyncedArticle(rs));
+      }
+    } catch (SQLException e) {
+      LOG.error("Error reading sync journal", e);
+    }
+    return articles;
+  }
+
+  // Finds the article by document ID, or by title for documents whose ID is not known.
+  public synchronized Optional<SyncedArticle> find(Document doc) {
+    String sql =
+        "SELECT pocket_id, title, document_id, content_hash, uploaded FROM synced_articles "
+            + "WHERE document_id = ? OR (document_id IS NULL AND title = ?)";
+    try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+      pstmt.setString(1, doc.id());
+      pstmt.setString(2, doc.name());
+      ResultSet rs = pstmt.executeQuery();
+      if (rs.next()) {
+        return Optional.of(toSyncedArticle(rs));
+      }
+    } catch (SQLException e) {
+      LOG.error("Error reading sync journal", e);
+    }
+    return Optional.empty();
+  }
+
+  public synchronized void rename(String pocketId, String title) {
+    update("UPDATE synced_articles SET title = ? WHERE pocket_id = ?", title, pocketId);
+  }
+
+  // Only sets the document ID of articles that were recorded without one.
+  public synchronized void setDocumentId(String pocketId, String documentId) {
+    update(
+        "UPDATE synced_articles SET document_id = ? WHERE pocket_id = ? AND document_id IS NULL",
+        documentId,
+        pocketId);
+  }
+
+  public synchronized void remove(String pocketId) {
+    update("DELETE FROM synced_articles WHERE pocket_id = ?", pocketId);
+  }
+
+  private void update(String sql, String... params) {
+    try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+      for (int i = 0; i < params.length; i++) {
+        pstmt.setString(i + 1, params[i]);
+      }
+      pstmt.executeUpdate();
+    } catch (SQLException e) {
+      LOG.error("Error updating sync journal", e);
+    }
+  }
+
+  private static SyncedArticle toSyncedArticle(ResultSet rs) throws SQLException {
+    return new SyncedArticle(
+        rs.getString("pocket_id"),
+        rs.getString("title"),
+        rs.getString("document_id"),
+        rs.getString("content_hash"),
+        Instant.ofEpochSecond(rs.getLong("uploaded")));
+  }
+
+  @PreDestroy
+  public synchronized void close() {
+    try {
+      if (conn != null) {
+        conn.close();
+        conn = null;
+        LOG.debug("Sync journal connection closed");
+      }
+    } catch (SQLException e) {
+      LOG.error("Error closing sync journal connection", e);
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package nl.carosi.remarkablepocket;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.springframework.beans.factory.annotation.Value;
+
+// The meters of a sync. They are exposed on /actuator/metrics when a metrics port is set. When
+// several accounts are synchronized, the meters are tagged with the account.
+final class SyncMetrics {
+  static final String ARCHIVE = "archive";
+  static final String LIST = "list";
+  static final String FETCH = "fetch";
+  static final String DOWNLOAD = "download";
+  static final String FORMAT = "format";
+  static final String UPLOAD = "upload";
+
+  private final MeterRegistry registry;
+  private final Tags tags;
+  private final AtomicInteger articlesOnRm = new AtomicInteger();
+
+  public SyncMetrics(
+      MeterRegistry registry,
+      @Value("${rm.article-limit}") int articleLimit,
+      @Value("${sync.account}") String account) {
+    this.registry = registry;
+    this.tags = account.isEmpty() ? Tags.empty() : Tags.of("account", account);
+    Gauge.builder("rm.articles", articlesOnRm, AtomicInteger::get)
+        .description("The number of Pocket articles on the Remarkable.")
+        .tags(tags)
+        .register(registry);
+    Gauge.builder("rm.articles.limit", () -> articleLimit)
+        .description("The maximum number of Pocket articles on the Remarkable.")
+        .tags(tags)
+        .register(registry);
+    Gauge.builder("rm.articles.occupancy", articlesOnRm, e -> (double) e.get() / articleLimit)
+        .description("The fraction of the article limit that is used.")
+        .tags(tags)
+        .register(registry);
+  }
+
+  // Times the action, also when it fails.
+  <T, E extends Exception> T time(String phase, Action<T, E> action) throws E {
+    return time(registry.timer("sync.phase", tags.and("phase", phase)), action);
+  }
+
+  <T, E extends Exception> T timeCommand(String command, Action<T, E> action) throws E {
+    return time(registry.timer("rm.command", tags.and("command", command)), action);
+  }
+
+  private static <T, E extends Exception> T time(Timer timer, Action<T, E> action) throws E {
+    Timer.Sample sample = Timer.start();
+    try {
+      return action.run();
+    } finally {
+      sample.stop(timer);
+    }
+  }
+
+  Timer sync() {
+    return registry.timer("sync.duration", tags);
+  }
+
+  void retried(String operation) {
+    registry.counter("sync.retries", tags.and("operation", operation)).increment();
+  }
+
+  void invalidated() {
+    registry.counter("articles.invalidated", tags).increment();
+  }
+
+  void corrupted() {
+    registry.counter("rm.documents.corrupted", tags).increment();
+  }
+
+  void setArticlesOnRm(int count) {
+    articlesOnRm.set(count);
+  }
+
+  interface Action<T, E extends Exception> {
+    T run() throws E;
+  }
+}
@@ -0,0 +1,149 @@
+package nl.carosi.remarkablepocket;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static nl.carosi.remarkablepocket.SyncService.humanReadable;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+// Runs the synchronizations of one or more accounts on a shared pool of workers. An account is
+// never synchronized concurrently with itself, and due synchronizations run in the order in which
+// they became due, so a slow account can't keep the others from being synchronized.
+//
+// The interval of an account adapts to its activity: after a sync that archived or uploaded
+// articles the next one follows after the minimum interval, and every sync without changes doubles
+// the interval, up to the configured interval. A sync can also be triggered, e.g. by the sync
+// endpoint. Triggers that arrive while a sync of the account is due or running are merged into a
+// single sync.
+final class SyncScheduler {
+  private static final Logger LOG = LoggerFactory.getLogger(SyncScheduler.class);
+  private final Map<String, Account> accounts = new LinkedHashMap<>();
+  private final ScheduledThreadPoolExecutor executor;
+  private final boolean runOnce;
+  private final AtomicInteger remaining = new AtomicInteger();
+  private Runnable exit;
+
+  SyncScheduler(int workers, boolean runOnce) {
+    checkArgument(workers > 0, "Sync workers must be at least 1.");
+    this.executor =
+        new ScheduledThreadPoolExecutor(
+            workers, new ThreadFactoryBuilder().setNameFormat("sync-%d").build());
+    this.runOnce = runOnce;
+  }
+
+  // The account is empty when only a single account is synchronized.
+  void add(String account, SyncService service) {
+    accounts.put(account, new Account(account, service));
+  }
+
+  // Starts synchronizing all accounts. In run-once mode, exit is called once every account has
+  // been synchronized.
+  void start(Runnable exit) {
+    this.exit = exit;
+    remaining.set(accounts.size());
+    accounts.values().forEach(e -> e.schedule(Duration.ZERO));
+  }
+
+  List<String> accounts() {
+    return List.copyOf(accounts.keySet());
+  }
+
+  // Starts a sync of the account right away, unless one is already due or running. A sync that is
+  // running is followed by another one, so articles saved during the sync are picked up as well.
+  void trigger(String account) {
+    Account target = accounts.get(account);
+    checkArgument(target != null, "Unknown account: '%s'.", account);
+    target.trigger();
+  }
+
+  private final class Account {
+    private final String name;
+    private final SyncService service;
+    private Duration interval;
+    private ScheduledFuture<?> next;
+    private boolean running;
+    private boolean triggered;
+
+    Account(String name, SyncService service) {
+      this.name = name;
+      this.service = service;
+      this.interval = service.minInterval();
+    }
+
+    synchronized void schedule(Duration delay) {
+      next = executor.schedule(this::run, delay.toMillis(), MILLISECONDS);
+    }
+
+    synchronized void trigger() {
+      if (runOnce || next == null) {
+        return;
+      }
+      if (running) {
+        triggered = true;
+      } else if (next.getDelay(MILLISECONDS) > 0 && next.cancel(false)) {
+        LOG.info("Sync triggered{}.", name.isEmpty() ? "" : " for " + name);
+        schedule(Duration.ZERO);
+      }
+    }
+
+    private void run() {
+      // Prefixes the log messages of the sync with the account, see logging.pattern.console.
+      MDC.put("account", name);
+      try {
+        runImpl();
+      } finally {
+        MDC.remove("account");
+      }
+    }
+
+    private void runImpl() {
+      synchronized (this) {
+        running = true;
+        triggered = false;
+      }
+      boolean changed = sync();
+      if (runOnce) {
+        if (remaining.decrementAndGet() == 0) {
+          LOG.info("Run-once option was set. Exiting.");
+          exit.run();
+        }
+        return;
+      }
+      synchronized (this) {
+        running = false;
+        interval = changed ? service.minInterval() : capped(interval.multipliedBy(2));
+        if (triggered) {
+          schedule(Duration.ZERO);
+        } else {
+          LOG.info("Next sync in {}.\n", humanReadable(interval));
+          schedule(interval);
+        }
+      }
+    }
+
+    private Duration capped(Duration interval) {
+      return interval.compareTo(service.interval()) < 0 ? interval : service.interval();
+    }
+
+    private boolean sync() {
+      try {
+        return service.sync();
+      } catch (RuntimeException e) {
+        // A failed sync must not cancel the next ones.
+        LOG.error("Error occurred during sync: {}", e.getMessage());
+        LOG.debug("Stack trace:", e);
+        return false;
+      }
+    }
+  }
+}
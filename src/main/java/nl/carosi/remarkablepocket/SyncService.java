@@ -1,55 +1,63 @@
 package nl.carosi.remarkablepocket;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static java.time.temporal.ChronoUnit.SECONDS;
 import static nl.carosi.remarkablepocket.ConnectivityChecker.ensureConnected;
+import static nl.carosi.remarkablepocket.SyncMetrics.ARCHIVE;
+import static nl.carosi.remarkablepocket.SyncMetrics.DOWNLOAD;
+import static nl.carosi.remarkablepocket.SyncMetrics.LIST;
+import static nl.carosi.remarkablepocket.SyncMetrics.UPLOAD;
 
 import java.io.IOException;
-import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
 import nl.carosi.remarkablepocket.model.Article;
 import nl.carosi.remarkablepocket.model.DocumentMetadata;
+import nl.carosi.remarkablepocket.model.Download;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.boot.SpringApplication;
-import org.springframework.context.ApplicationContext;
-import org.springframework.scheduling.annotation.Scheduled;
 
 final class SyncService {
   private static final Logger LOG = LoggerFactory.getLogger(SyncService.class);
   private final PocketService pocketService;
   private final DownloadService downloadService;
   private final RemarkableService remarkableService;
-  private final ApplicationContext appContext;
+  private final SyncMetrics metrics;
   private final int articleLimit;
   private final boolean archiveRead;
   private final Duration syncInterval;
-  private final boolean runOnce;
+  private final Duration minSyncInterval;
 
   public SyncService(
       PocketService pocketService,
       DownloadService downloadService,
       RemarkableService remarkableService,
-      ApplicationContext appContext,
+      SyncMetrics metrics,
       @Value("${rm.article-limit}") int articleLimit,
       @Value("${pocket.archive-read}") boolean archiveRead,
       @Value("${sync.interval}") Duration syncInterval,
-      @Value("${sync.run-once}") boolean runOnce) {
+      @Value("${sync.min-interval}") Duration minSyncInterval) {
+    checkArgument(
+        !minSyncInterval.isNegative()
+            && !minSyncInterval.isZero()
+            && minSyncInterval.compareTo(syncInterval) <= 0,
+        "Minimum interval must be positive and at most the interval.");
     this.pocketService = pocketService;
     this.downloadService = downloadService;
     this.remarkableService = remarkableService;
-    this.appContext = appContext;
+    this.metrics = metrics;
     this.articleLimit = articleLimit;
     this.archiveRead = archiveRead;
     this.syncInterval = syncInterval;
-    this.runOnce = runOnce;
+    this.minSyncInterval = minSyncInterval;
   }
 
-  private static String humanReadable(Duration duration) {
+  static String humanReadable(Duration duration) {
     return duration
         .truncatedTo(SECONDS)
         .toString()
@@ -58,63 +66,98 @@ final class SyncService {
         .toLowerCase();
   }
 
-  @Scheduled(fixedDelayString = "${sync.interval}")
-  void sync() {
+  Duration interval() {
+    return syncInterval;
+  }
+
+  Duration minInterval() {
+    return minSyncInterval;
+  }
+
+  // Called by the SyncScheduler. Returns whether any articles were archived or uploaded.
+  boolean sync() {
     ensureConnected(LOG::error);
 
     try {
-      syncImpl();
+      remarkableService.openSession();
+      return syncImpl();
     } catch (Exception e) {
       LOG.error("Error occurred during sync: {}", e.getMessage());
       LOG.debug("Stack trace:", e);
+      return false;
+    } finally {
+      remarkableService.closeSession();
     }
-
-    if (runOnce) {
-      LOG.info("Run-once option was set. Exiting.");
-      System.exit(SpringApplication.exit(appContext, () -> 0));
-    }
-
-    LOG.info("Next sync in {}.\n", humanReadable(syncInterval));
   }
 
-  private void syncImpl() throws IOException {
+  private boolean syncImpl() throws IOException {
     LOG.info("Starting sync...");
     Instant start = Instant.now();
-    if (archiveRead) {
-      archiveReadArticles();
-    }
+    int nArchived = archiveRead ? metrics.time(ARCHIVE, this::archiveReadArticles) : 0;
 
-    Set<String> articlesOnRm = Set.copyOf(remarkableService.listDocumentNames());
+    Set<String> articlesOnRm = Set.copyOf(metrics.time(LIST, remarkableService::reconcileJournal));
     int nArticlesOnRm = articlesOnRm.size();
+    metrics.setArticlesOnRm(nArticlesOnRm);
     if (nArticlesOnRm >= articleLimit) {
       LOG.info("No new articles synced. Remarkable already has {} article(s).", articleLimit);
-      return;
+      return nArchived > 0;
     }
-    List<Article> unsynced =
-        pocketService.getArticles().stream()
-            .filter(e -> !articlesOnRm.contains(e.title()))
-            .collect(Collectors.toList());
-    if (unsynced.isEmpty()) {
+    // Articles are only retrieved from Pocket while more downloads are needed. They are matched by
+    // Pocket ID, and by title for documents that were uploaded before the journal existed.
+    Set<String> syncedIds = remarkableService.syncedPocketIds();
+    Iterator<Article> unsynced =
+        pocketService
+            .getArticles()
+            .filter(e -> !syncedIds.contains(e.id()) && !articlesOnRm.contains(e.title()))
+            .iterator();
+    if (!unsynced.hasNext()) {
       LOG.info("All Pocket articles are synced with Remarkable.");
-      return;
+      return nArchived > 0;
     }
 
-    downloadService.clearDownloads();
-    List<Path> downloads = downloadService.download(unsynced, articleLimit, nArticlesOnRm);
-    remarkableService.upload(downloads);
-    LOG.info("Completed sync in {}.", humanReadable(Duration.between(start, Instant.now())));
+    List<Download> uploaded;
+    try {
+      List<Download> downloads =
+          metrics.time(
+              DOWNLOAD, () -> downloadService.download(unsynced, articleLimit, nArticlesOnRm));
+      uploaded = metrics.time(UPLOAD, () -> remarkableService.upload(downloads));
+    } finally {
+      // Downloads are no longer needed once they are uploaded or failed to upload.
+      downloadService.clearDownloads();
+    }
+    metrics.setArticlesOnRm(nArticlesOnRm + uploaded.size());
+    Duration duration = Duration.between(start, Instant.now());
+    metrics.sync().record(duration);
+    LOG.info("Completed sync in {}.", humanReadable(duration));
+    return nArchived > 0 || !uploaded.isEmpty();
   }
 
-  private void archiveReadArticles() throws IOException {
+  // Returns the number of archived articles that were deleted from the Remarkable.
+  private int archiveReadArticles() throws IOException {
     List<DocumentMetadata> documents = remarkableService.listReadDocuments();
     int nDocs = documents.size();
     LOG.info("Found {} read article(s) on Remarkable.", nDocs);
+    if (nDocs == 0) {
+      return 0;
+    }
+    LOG.info("Marking {} article(s) as read on Pocket...", nDocs);
+    Set<String> archived =
+        pocketService.archive(
+            documents.stream()
+                .map(DocumentMetadata::pocketId)
+                .distinct()
+                .collect(Collectors.toList()));
+    int nDeleted = 0;
     for (int i = 0; i < nDocs; i++) {
       DocumentMetadata doc = documents.get(i);
-      LOG.info("({}/{}) Marking '{}' as read on Pocket...", i + 1, nDocs, doc.doc().name());
-      pocketService.archive(doc.pocketId());
+      if (!archived.contains(doc.pocketId())) {
+        LOG.warn("({}/{}) Keeping '{}' on Remarkable.", i + 1, nDocs, doc.doc().name());
+        continue;
+      }
       LOG.info("({}/{}) Deleting '{}' from Remarkable...", i + 1, nDocs, doc.doc().name());
-      remarkableService.delete(doc.doc().name());
+      remarkableService.delete(doc);
+      nDeleted++;
     }
+    return nDeleted;
   }
 }
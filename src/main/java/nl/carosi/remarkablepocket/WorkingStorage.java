@@ -0,0 +1,201 @@
+package nl.carosi.remarkablepocket;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import jakarta.annotation.PreDestroy;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+// The temporary files of a sync: downloaded articles, the working directories of the Remarkable
+// clients and the documents downloaded from the Remarkable. They share one temporary directory,
+// which is deleted on shutdown.
+//
+// Documents that are small enough are kept in memory. Larger ones are stored in files that are
+// deleted as soon as the document is closed. When the stored documents exceed the budget, the least
+// recently modified ones that are no longer open are deleted, e.g. those that could not be deleted
+// when they were closed.
+final class WorkingStorage {
+  private static final Logger LOG = LoggerFactory.getLogger(WorkingStorage.class);
+  private static final String BUNDLE_DIR = "bundles";
+  private static final String BUNDLE_TYPE = ".zip";
+
+  private final Path root;
+  private final Path bundleDir;
+  private final long budgetBytes;
+  private final long memoryBundleBytes;
+  private final Set<Path> openBundles = new HashSet<>();
+
+  public WorkingStorage(
+      @Value("${storage.budget}") long budgetMegabytes,
+      @Value("${storage.memory-bundle-size}") long memoryBundleKilobytes) {
+    checkArgument(budgetMegabytes > 0, "Storage budget must be positive.");
+    checkArgument(memoryBundleKilobytes >= 0, "In-memory document size can't be negative.");
+    this.budgetBytes = budgetMegabytes * 1024 * 1024;
+    this.memoryBundleBytes = memoryBundleKilobytes * 1024;
+    try {
+      root = Files.createTempDirectory("remarkable-pocket").toAbsolutePath();
+      bundleDir = Files.createDirectory(root.resolve(BUNDLE_DIR));
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not create working storage", e);
+    }
+    LOG.debug("Created working storage: {}.", root);
+  }
+
+  // The files in the directory are managed by the caller. They are deleted with the storage.
+  Path createDir(String name) throws IOException {
+    return Files.createDirectories(root.resolve(name));
+  }
+
+  // Takes over a downloaded document, which is moved into the storage or read into memory.
+  DocumentBundle adopt(Path file) throws IOException {
+    if (Files.size(file) <= memoryBundleBytes) {
+      byte[] data = Files.readAllBytes(file);
+      Files.delete(file);
+      return DocumentBundle.inMemory(data);
+    }
+    Path target = newBundleFile();
+    try {
+      Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      release(target);
+      throw e;
+    }
+    return open(target);
+  }
+
+  // Writes a document, which is only written to a file once it no longer fits in memory.
+  DocumentBundle write(BundleWriter writer) throws IOException {
+    SpillingOutputStream out = new SpillingOutputStream();
+    try (out) {
+      writer.writeTo(out);
+    } catch (IOException | RuntimeException e) {
+      if (out.file != null) {
+        release(out.file);
+      }
+      throw e;
+    }
+    return out.file == null ? DocumentBundle.inMemory(out.buffer.toByteArray()) : open(out.file);
+  }
+
+  // The file is open until it is released, so it isn't evicted while it is written.
+  private synchronized Path newBundleFile() throws IOException {
+    Path file = Files.createTempFile(bundleDir, null, BUNDLE_TYPE);
+    openBundles.add(file);
+    return file;
+  }
+
+  private synchronized DocumentBundle open(Path file) {
+    try {
+      evict();
+    } catch (IOException e) {
+      LOG.debug("Could not evict documents from the working storage.", e);
+    }
+    return DocumentBundle.onDisk(file, () -> release(file));
+  }
+
+  private synchronized void release(Path file) {
+    openBundles.remove(file);
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      LOG.debug("Could not delete document: {}.", file, e);
+    }
+  }
+
+  private void evict() throws IOException {
+    List<StoredBundle> bundles = new ArrayList<>();
+    long size = 0;
+    try (DirectoryStream<Path> paths = Files.newDirectoryStream(bundleDir, "*" + BUNDLE_TYPE)) {
+      for (Path path : paths) {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        bundles.add(new StoredBundle(path, attributes.size(), attributes.lastModifiedTime()));
+        size += attributes.size();
+      }
+    }
+    bundles.sort(Comparator.comparing(StoredBundle::lastModified));
+    for (int i = 0; size > budgetBytes && i < bundles.size(); i++) {
+      StoredBundle bundle = bundles.get(i);
+      if (!openBundles.contains(bundle.path())) {
+        Files.delete(bundle.path());
+        size -= bundle.size();
+        LOG.debug("Evicted {} from the working storage.", bundle.path().getFileName());
+      }
+    }
+    if (size > budgetBytes) {
+      LOG.debug("Working storage exceeds its budget with {} open document(s).", openBundles.size());
+    }
+  }
+
+  @PreDestroy
+  void delete() {
+    try {
+      MoreFiles.deleteRecursively(root, RecursiveDeleteOption.ALLOW_INSECURE);
+      LOG.debug("Deleted working storage: {}.", root);
+    } catch (IOException e) {
+      LOG.debug("Could not delete working storage: {}.", root, e);
+    }
+  }
+
+  interface BundleWriter {
+    void writeTo(OutputStream out) throws IOException;
+  }
+
+  private record StoredBundle(Path path, long size, FileTime lastModified) {}
+
+  // Buffers the written bytes until they exceed the in-memory size, and writes to a file from then.
+  private final class SpillingOutputStream extends OutputStream {
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private OutputStream out = buffer;
+    private Path file;
+
+    @Override
+    public void write(int b) throws IOException {
+      spillIfFull(1);
+      out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      spillIfFull(len);
+      out.write(b, off, len);
+    }
+
+    private void spillIfFull(int len) throws IOException {
+      if (file == null && buffer.size() + len > memoryBundleBytes) {
+        file = newBundleFile();
+        out = new BufferedOutputStream(Files.newOutputStream(file));
+        buffer.writeTo(out);
+        buffer = null;
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+}
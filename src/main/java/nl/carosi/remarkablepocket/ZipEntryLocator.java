@@ -0,0 +1,169 @@
+package nl.carosi.remarkablepocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+// Opens a single entry of an in-memory or mapped zip archive by looking it up in the archive's
+// central directory, so none of the entries in front of it have to be inflated. CRCs are not
+// verified.
+final class ZipEntryLocator {
+  private static final int EOCD_SIGNATURE = 0x06054b50;
+  private static final int EOCD_SIZE = 22;
+  private static final int CEN_SIGNATURE = 0x02014b50;
+  private static final int CEN_SIZE = 46;
+  private static final int LOC_SIGNATURE = 0x04034b50;
+  private static final int LOC_SIZE = 30;
+  private static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+  private ZipEntryLocator() {}
+
+  // Returns empty if the entry does not exist or the archive can't be read this way, e.g. because
+  // its central directory is missing or it uses zip64 or an unsupported compression method.
+  static Optional<InputStream> open(ByteBuffer zip, String name) {
+    return find(zip, name)
+        .flatMap(
+            entry ->
+                switch (entry.method()) {
+                  case 0 -> Optional.of(stream(entry.data())); // Stored
+                  case 8 -> Optional.of(inflate(stream(entry.data()))); // Deflated
+                  default -> Optional.empty();
+                });
+  }
+
+  // Returns the bytes of an entry that is stored without compression, e.g. an archive in an
+  // archive, which can then be read without copying it. Empty if the entry is compressed.
+  static Optional<ByteBuffer> stored(ByteBuffer zip, String name) {
+    return find(zip, name).filter(entry -> entry.method() == 0).map(Entry::data);
+  }
+
+  // Reads the remaining bytes of the buffer, which may be a mapped file.
+  static InputStream stream(ByteBuffer buffer) {
+    ByteBuffer data = buffer.slice();
+    return new InputStream() {
+      @Override
+      public int read() {
+        return data.hasRemaining() ? Byte.toUnsignedInt(data.get()) : -1;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) {
+        Objects.checkFromIndexSize(off, len, b.length);
+        if (len == 0) {
+          return 0;
+        }
+        if (!data.hasRemaining()) {
+          return -1;
+        }
+        int n = Math.min(len, data.remaining());
+        data.get(b, off, n);
+        return n;
+      }
+
+      @Override
+      public int available() {
+        return data.remaining();
+      }
+    };
+  }
+
+  private static Optional<Entry> find(ByteBuffer buffer, String name) {
+    try {
+      return findImpl(buffer.slice().order(ByteOrder.LITTLE_ENDIAN), name);
+    } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+      return Optional.empty();
+    }
+  }
+
+  private static Optional<Entry> findImpl(ByteBuffer zip, String name) {
+    int eocd = findEndOfCentralDirectory(zip);
+    if (eocd < 0) {
+      return Optional.empty();
+    }
+    int entries = Short.toUnsignedInt(zip.getShort(eocd + 10));
+    long cenOffset = Integer.toUnsignedLong(zip.getInt(eocd + 16));
+    if (cenOffset >= zip.limit()) {
+      return Optional.empty();
+    }
+
+    byte[] target = name.getBytes(StandardCharsets.UTF_8);
+    int pos = (int) cenOffset;
+    for (int i = 0; i < entries; i++) {
+      if (zip.getInt(pos) != CEN_SIGNATURE) {
+        return Optional.empty();
+      }
+      int nameLength = Short.toUnsignedInt(zip.getShort(pos + 28));
+      if (nameEquals(zip, pos + CEN_SIZE, nameLength, target)) {
+        int method = Short.toUnsignedInt(zip.getShort(pos + 10));
+        long compressedSize = Integer.toUnsignedLong(zip.getInt(pos + 20));
+        long locOffset = Integer.toUnsignedLong(zip.getInt(pos + 42));
+        return locateData(zip, compressedSize, locOffset).map(data -> new Entry(method, data));
+      }
+      int extraLength = Short.toUnsignedInt(zip.getShort(pos + 30));
+      int commentLength = Short.toUnsignedInt(zip.getShort(pos + 32));
+      pos += CEN_SIZE + nameLength + extraLength + commentLength;
+    }
+    return Optional.empty();
+  }
+
+  private static int findEndOfCentralDirectory(ByteBuffer zip) {
+    int min = Math.max(0, zip.limit() - EOCD_SIZE - MAX_COMMENT_SIZE);
+    for (int pos = zip.limit() - EOCD_SIZE; pos >= min; pos--) {
+      if (zip.getInt(pos) == EOCD_SIGNATURE) {
+        return pos;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean nameEquals(ByteBuffer zip, int pos, int length, byte[] name) {
+    if (length != name.length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (zip.get(pos + i) != name[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static Optional<ByteBuffer> locateData(
+      ByteBuffer zip, long compressedSize, long locOffset) {
+    int loc = (int) locOffset;
+    if (zip.getInt(loc) != LOC_SIGNATURE) {
+      return Optional.empty();
+    }
+    int nameLength = Short.toUnsignedInt(zip.getShort(loc + 26));
+    int extraLength = Short.toUnsignedInt(zip.getShort(loc + 28));
+    int start = loc + LOC_SIZE + nameLength + extraLength;
+    if (compressedSize > zip.limit() - start) {
+      return Optional.empty();
+    }
+    return Optional.of(zip.slice(start, (int) compressedSize));
+  }
+
+  // InflaterInputStream only ends inflaters it created itself, so this one's native memory is
+  // released explicitly when the stream is closed.
+  private static InputStream inflate(InputStream data) {
+    Inflater inflater = new Inflater(true);
+    return new InflaterInputStream(data, inflater) {
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          inflater.end();
+        }
+      }
+    };
+  }
+
+  private record Entry(int method, ByteBuffer data) {}
+}
@@ -5,4 +5,8 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 
 @JsonIgnoreProperties(ignoreUnknown = true)
 public record Document(
-    @JsonProperty("CurrentPage") int currentPage, @JsonProperty("Name") String name) {}
+    @JsonProperty("CurrentPage") int currentPage,
+    @JsonProperty("Name") String name,
+    @JsonProperty("ID") String id,
+    @JsonProperty("Version") int version,
+    @JsonProperty("ModifiedClient") String modifiedClient) {}
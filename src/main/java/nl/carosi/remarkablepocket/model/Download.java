@@ -0,0 +1,5 @@
+package nl.carosi.remarkablepocket.model;
+
+import java.nio.file.Path;
+
+public record Download(Article article, Path path) {}
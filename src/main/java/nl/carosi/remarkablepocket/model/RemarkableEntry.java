@@ -0,0 +1,13 @@
+package nl.carosi.remarkablepocket.model;
+
+// An entry in a directory listing on the Remarkable. The ID is null when it is not known.
+public record RemarkableEntry(Type type, String name, String id) {
+  public boolean isDocument() {
+    return type == Type.DOCUMENT;
+  }
+
+  public enum Type {
+    DOCUMENT,
+    DIRECTORY
+  }
+}
@@ -0,0 +1,6 @@
+package nl.carosi.remarkablepocket.model;
+
+import java.time.Instant;
+
+public record SyncedArticle(
+    String pocketId, String title, String documentId, String contentHash, Instant uploaded) {}
@@ -0,0 +1,27 @@
+#!/bin/sh
+
+# Starts the application with an application class data sharing (AppCDS) archive, which holds the
+# parsed and verified classes of the application and its dependencies. The archive has to be
+# created by the JVM that uses it, so the first run is a training run that writes the archive to
+# the config directory when it exits. Subsequent runs map the archive instead of loading the classes
+# from the jars. Set CDS=false to start without an archive.
+
+CLASSPATH_FILE=/app/jib-classpath-file
+MAIN_CLASS=$(cat /app/jib-main-class-file)
+CDS_DIR="${CDS_DIR:-${HOME}/.remarkable-pocket/cds}"
+# The key is a hash of the jars of the image, computed when the image is built. The archive of an
+# image with other jars, or another JVM, is replaced.
+CDS_ARCHIVE="${CDS_DIR}/$(cat /app/cds-key)-${JAVA_VERSION:-jvm}.jsa"
+
+if [ "${CDS}" = "false" ]; then
+  CDS_FLAGS=""
+elif [ -f "${CDS_ARCHIVE}" ]; then
+  CDS_FLAGS="-XX:SharedArchiveFile=${CDS_ARCHIVE}"
+elif mkdir -p "${CDS_DIR}" 2>/dev/null; then
+  echo "Creating class data sharing archive ${CDS_ARCHIVE}, subsequent runs will start faster."
+  rm -f "${CDS_DIR}"/*.jsa
+  CDS_FLAGS="-XX:ArchiveClassesAtExit=${CDS_ARCHIVE}"
+fi
+
+# shellcheck disable=SC2086
+exec java ${JVM_FLAGS} ${CDS_FLAGS} -cp "@${CLASSPATH_FILE}" "${MAIN_CLASS}" "$@"
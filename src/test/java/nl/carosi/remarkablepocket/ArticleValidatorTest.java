@@ -0,0 +1,33 @@
+package nl.carosi.remarkablepocket;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Stores invalidated articles in a database in a temporary config directory.
+class ArticleValidatorTest {
+  @TempDir Path tempDir;
+  private final SyncMetrics metrics = new SyncMetrics(new SimpleMeterRegistry(), 10, "");
+
+  @Test
+  void storesInvalidatedArticlesOnShutdown() {
+    ArticleValidator validator = new ArticleValidator(tempDir, metrics);
+    ArticleValidator reopened = null;
+    try {
+      validator.invalidate("Article");
+
+      ArticleValidator.flushAll();
+
+      reopened = new ArticleValidator(tempDir, metrics);
+      assertThat(reopened.isValid("Article")).isFalse();
+    } finally {
+      validator.close();
+      if (reopened != null) {
+        reopened.close();
+      }
+    }
+  }
+}
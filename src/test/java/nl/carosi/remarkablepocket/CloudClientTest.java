@@ -0,0 +1,156 @@
+package nl.carosi.remarkablepocket;
+
+import static nl.carosi.remarkablepocket.model.RemarkableEntry.Type.DIRECTORY;
+import static nl.carosi.remarkablepocket.model.RemarkableEntry.Type.DOCUMENT;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.tuple;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import nl.carosi.remarkablepocket.model.Document;
+import nl.carosi.remarkablepocket.model.RemarkableEntry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Runs the native client against the in-memory stand-in for the Remarkable Cloud.
+class CloudClientTest {
+  private static final String STORAGE_DIR = "/Articles/Pocket/";
+
+  @TempDir Path tempDir;
+  private final MeterRegistry registry = new SimpleMeterRegistry();
+  private LocalCloudServer server;
+  private WorkingStorage storage;
+  private CloudClient client;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    server = new LocalCloudServer(0);
+    server.start();
+    Files.writeString(tempDir.resolve(".remarkable-auth"), "device.token=" + server.deviceToken());
+    storage = new WorkingStorage(10, 1024);
+    client = client(STORAGE_DIR);
+    client.createDir(STORAGE_DIR);
+  }
+
+  @AfterEach
+  void tearDown() {
+    storage.delete();
+    server.stop();
+  }
+
+  private CloudClient client(String storageDir) {
+    CloudClient cloudClient =
+        new CloudClient(
+            new ObjectMapper(),
+            storageDir,
+            tempDir.toString(),
+            true,
+            server.url(),
+            server.url(),
+            storage,
+            new SyncMetrics(registry, 10, ""));
+    cloudClient.login();
+    return cloudClient;
+  }
+
+  @Test
+  void createsMissingDirectoriesOnce() {
+    client.createDir(STORAGE_DIR);
+    client.createDir("/Articles/Other");
+
+    List<RemarkableEntry> entries = client("/Articles/").list();
+
+    assertThat(entries)
+        .extracting(RemarkableEntry::type, RemarkableEntry::name)
+        .containsExactly(tuple(DIRECTORY, "Other"), tuple(DIRECTORY, "Pocket"));
+    assertThat(client.list()).isEmpty();
+  }
+
+  @Test
+  void listsAndStatsUploadedDocuments() throws IOException {
+    client.upload(epub("First"));
+    client.uploadAll(List.of(epub("Second"), epub("Third")));
+
+    List<RemarkableEntry> entries = client.list();
+    Document info = client.info("Second");
+
+    assertThat(entries)
+        .extracting(RemarkableEntry::name)
+        .containsExactly("First", "Second", "Third");
+    assertThat(entries).extracting(RemarkableEntry::type).containsOnly(DOCUMENT);
+    assertThat(info.name()).isEqualTo("Second");
+    assertThat(info.id()).isEqualTo(entries.get(1).id());
+    assertThat(info.version()).isZero();
+  }
+
+  @Test
+  void downloadsDocumentFiles() throws IOException {
+    Path epub = epub("Article");
+    client.upload(epub);
+    String id = client.info("Article").id();
+
+    try (DocumentBundle bundle = client.download("Article");
+        InputStream content = bundle.open(id + ".epub")) {
+      assertThat(bundle.firstEntryName()).isEqualTo(id + ".content");
+      assertThat(content.readAllBytes()).isEqualTo(Files.readAllBytes(epub));
+    }
+  }
+
+  @Test
+  void deletesDocument() throws IOException {
+    client.uploadAll(List.of(epub("Kept"), epub("Deleted")));
+
+    client.delete("Deleted");
+
+    assertThat(client.list()).extracting(RemarkableEntry::name).containsExactly("Kept");
+    assertThatThrownBy(() -> client.info("Deleted")).hasMessageContaining("Document not found");
+  }
+
+  @Test
+  void retriesRootUpdateAfterConcurrentUpdate() throws IOException {
+    server.updateRootConcurrently();
+
+    client.upload(epub("Article"));
+
+    assertThat(client.list()).extracting(RemarkableEntry::name).containsExactly("Article");
+    assertThat(retries("root-update")).isEqualTo(1);
+  }
+
+  @Test
+  void renewsExpiredUserToken() throws IOException {
+    Path epub = epub("Article");
+    client.upload(epub);
+    client.openSession();
+    String id = client.info("Article").id();
+    server.expireUserToken();
+
+    // The tree is cached in the session, so the expired token is first used to stream a file.
+    try (DocumentBundle bundle = client.download("Article");
+        InputStream content = bundle.open(id + ".epub")) {
+      assertThat(content.readAllBytes()).isEqualTo(Files.readAllBytes(epub));
+    } finally {
+      client.closeSession();
+    }
+    assertThat(retries("token-renewal")).isEqualTo(1);
+    assertThat(client.list()).extracting(RemarkableEntry::name).containsExactly("Article");
+  }
+
+  private Path epub(String name) throws IOException {
+    Path epub = tempDir.resolve(name + ".epub");
+    Files.writeString(epub, "epub of " + name);
+    return epub;
+  }
+
+  private double retries(String operation) {
+    return registry.counter("sync.retries", "operation", operation).count();
+  }
+}
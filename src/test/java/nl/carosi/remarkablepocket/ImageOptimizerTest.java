@@ -0,0 +1,59 @@
+package nl.carosi.remarkablepocket;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+import org.junit.jupiter.api.Test;
+
+// Optimizes generated images, which are decoded again to check their size and color.
+class ImageOptimizerTest {
+  private final ImageOptimizer optimizer = new ImageOptimizer(75, false, 5);
+
+  @Test
+  void downscalesLargeImageToFitDisplay() throws IOException {
+    byte[] image = image(5616, 3744, "jpeg");
+
+    BufferedImage optimized = decode(optimizer.optimize(image, optimizer.newBudget()));
+
+    assertThat(optimized.getWidth()).isEqualTo(1404);
+    assertThat(optimized.getHeight()).isEqualTo(936);
+    assertThat(optimized.getType()).isEqualTo(BufferedImage.TYPE_BYTE_GRAY);
+  }
+
+  @Test
+  void keepsSizeOfSmallImage() throws IOException {
+    byte[] image = image(640, 480, "png");
+
+    BufferedImage optimized = decode(optimizer.optimize(image, optimizer.newBudget()));
+
+    assertThat(optimized.getWidth()).isEqualTo(640);
+    assertThat(optimized.getHeight()).isEqualTo(480);
+  }
+
+  @Test
+  void keepsImageThatCantBeDecoded() {
+    byte[] image = {(byte) 0x89, 'P', 'N', 'G', 0, 0, 0, 0};
+
+    assertThat(optimizer.optimize(image, optimizer.newBudget())).isEqualTo(image);
+  }
+
+  private static byte[] image(int width, int height, String format) throws IOException {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+    for (int x = 0; x < width; x++) {
+      for (int y = 0; y < height; y++) {
+        image.setRGB(x, y, (x * 255 / width) << 16 | (y * 255 / height) << 8);
+      }
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(image, format, out);
+    return out.toByteArray();
+  }
+
+  private static BufferedImage decode(byte[] image) throws IOException {
+    return ImageIO.read(new ByteArrayInputStream(image));
+  }
+}
@@ -0,0 +1,159 @@
+package nl.carosi.remarkablepocket;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// An in-memory stand-in for the Remarkable Cloud's sync 1.5 endpoints, to run the native client
+// offline, e.g. with '--rm-client native --rm-cloud-url http://localhost:8090 --rm-auth-url
+// http://localhost:8090'. Any one-time code is accepted.
+public final class LocalCloudServer {
+  private static final Logger LOG = LoggerFactory.getLogger(LocalCloudServer.class);
+  private static final String DEVICE_TOKEN = "local-device-token";
+  private static final String FILES_PATH = "/sync/v3/files/";
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+  private final Map<String, byte[]> blobs = new ConcurrentHashMap<>();
+  private final HttpServer server;
+  private String rootHash;
+  private long generation;
+  private volatile String userToken = "local-user-token";
+  private boolean concurrentUpdate;
+
+  public LocalCloudServer(int port) throws IOException {
+    byte[] emptyRoot = new CloudIndex(List.of()).serialize();
+    rootHash = new CloudIndex(List.of()).hash();
+    blobs.put(rootHash, emptyRoot);
+
+    server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+    server.createContext("/token/json/2/device/new", e -> respond(e, 200, DEVICE_TOKEN));
+    server.createContext("/token/json/2/user/new", this::handleUserToken);
+    server.createContext("/sync/v4/root", this::handleRoot);
+    server.createContext(FILES_PATH, this::handleFile);
+  }
+
+  public static void main(String... args) throws IOException {
+    LocalCloudServer server =
+        new LocalCloudServer(args.length > 0 ? Integer.parseInt(args[0]) : 8090);
+    server.start();
+    LOG.info("Local Remarkable Cloud listening on {}.", server.url());
+  }
+
+  public void start() {
+    server.start();
+  }
+
+  public void stop() {
+    server.stop(0);
+  }
+
+  public String url() {
+    return "http://localhost:" + server.getAddress().getPort();
+  }
+
+  public String deviceToken() {
+    return DEVICE_TOKEN;
+  }
+
+  // Rejects the current user token, so clients have to renew it.
+  public void expireUserToken() {
+    userToken = "local-user-token-" + System.nanoTime();
+  }
+
+  // Makes the next root update fail as if another client updated the root just before.
+  public synchronized void updateRootConcurrently() {
+    concurrentUpdate = true;
+  }
+
+  private void handleUserToken(HttpExchange exchange) throws IOException {
+    if (!("Bearer " + DEVICE_TOKEN)
+        .equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+      respond(exchange, 401, "");
+      return;
+    }
+    respond(exchange, 200, userToken);
+  }
+
+  private synchronized void handleRoot(HttpExchange exchange) throws IOException {
+    if (!isAuthorized(exchange)) {
+      return;
+    }
+    if (exchange.getRequestMethod().equals("PUT")) {
+      Map<?, ?> body = objectMapper.readValue(exchange.getRequestBody().readAllBytes(), Map.class);
+      if (concurrentUpdate) {
+        concurrentUpdate = false;
+        generation++;
+      }
+      if (((Number) body.get("generation")).longValue() != generation) {
+        respond(exchange, 412, "");
+        return;
+      }
+      String hash = (String) body.get("hash");
+      if (!blobs.containsKey(hash)) {
+        respond(exchange, 400, "Unknown root index: " + hash);
+        return;
+      }
+      rootHash = hash;
+      generation++;
+      LOG.info("Root is now {} (generation {}).", rootHash, generation);
+    }
+    respond(
+        exchange,
+        200,
+        objectMapper.writeValueAsString(
+            Map.of("hash", rootHash, "generation", generation, "schemaVersion", 3)));
+  }
+
+  private void handleFile(HttpExchange exchange) throws IOException {
+    if (!isAuthorized(exchange)) {
+      return;
+    }
+    String hash = exchange.getRequestURI().getPath().substring(FILES_PATH.length());
+    if (exchange.getRequestMethod().equals("PUT")) {
+      blobs.put(hash, exchange.getRequestBody().readAllBytes());
+      LOG.debug("Stored {} as {}.", exchange.getRequestHeaders().getFirst("rm-filename"), hash);
+      respond(exchange, 200, "");
+      return;
+    }
+    byte[] blob = blobs.get(hash);
+    if (blob == null) {
+      respond(exchange, 404, "");
+      return;
+    }
+    exchange.getResponseHeaders().set("Connection", "close");
+    exchange.sendResponseHeaders(200, blob.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(blob);
+    }
+  }
+
+  private boolean isAuthorized(HttpExchange exchange) throws IOException {
+    if (("Bearer " + userToken).equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+      return true;
+    }
+    respond(exchange, 401, "");
+    return false;
+  }
+
+  private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+    exchange.getRequestBody().readAllBytes();
+    byte[] bytes = body.getBytes(UTF_8);
+    // HttpServer drops connections on which the client requested an upgrade to h2c, so tell the
+    // client not to reuse them.
+    exchange.getResponseHeaders().set("Connection", "close");
+    exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+}
@@ -0,0 +1,153 @@
+package nl.carosi.remarkablepocket;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static nl.carosi.remarkablepocket.ArticleDownloader.POCKET_ID_SEPARATOR;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import javax.imageio.ImageIO;
+import nl.carosi.remarkablepocket.model.Article;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+
+// Generates epubs from the fixture pages in src/test/resources/pages, served by a local server.
+class LocalEpubGeneratorTest {
+  private static final String ARTICLE_ID = "3812741983";
+
+  @TempDir Path tempDir;
+  private HttpServer server;
+  private LocalEpubGenerator generator;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/pages/", this::servePage);
+    server.createContext("/images/harbour.png", e -> respond(e, "image/png", png(800, 600)));
+    // Declares a length above the maximum image size, without sending the image.
+    server.createContext(
+        "/images/huge.png",
+        e -> {
+          e.getResponseHeaders().set("Content-Type", "image/png");
+          e.sendResponseHeaders(200, 64L * 1024 * 1024);
+          e.close();
+        });
+    server.start();
+    generator =
+        new LocalEpubGenerator(
+            new RestTemplateBuilder(),
+            new SyncMetrics(new SimpleMeterRegistry(), 10, ""),
+            new ImageOptimizer(75, false, 5));
+  }
+
+  @AfterEach
+  void tearDown() {
+    server.stop(0);
+  }
+
+  @Test
+  void generatesBookFromArticle() throws Exception {
+    Path epub = tempDir.resolve("article.epub");
+
+    boolean valid = generator.generate(article("article.html"), epub, Runnable::run).join();
+
+    assertThat(valid).isTrue();
+    try (ZipFile zip = new ZipFile(epub.toFile())) {
+      String opf = read(zip, EpubRewriter.OPF_PATH);
+      assertThat(opf)
+          .contains("<dc:title>The Lighthouse Keeper</dc:title>")
+          .contains("Pocket" + POCKET_ID_SEPARATOR + ARTICLE_ID)
+          .contains("href=\"" + EpubRewriter.CONTENT_HREF + "\"")
+          .contains("href=\"images/img0.png\"");
+
+      String content = read(zip, EpubRewriter.OPF_DIR + EpubRewriter.CONTENT_HREF);
+      assertThat(content)
+          .contains("<h1>The Lighthouse Keeper</h1>")
+          .contains("The harbour was quiet in the early morning")
+          .contains("<img src=\"../images/img0.png\"")
+          .doesNotContain("trackPageView", "<nav", "Copyright", "huge.png", "missing.png");
+
+      List<String> images =
+          Collections.list(zip.entries()).stream()
+              .map(ZipEntry::getName)
+              .filter(name -> name.startsWith(EpubRewriter.OPF_DIR + "images/"))
+              .toList();
+      assertThat(images).containsExactly(EpubRewriter.OPF_DIR + "images/img0.png");
+      BufferedImage image =
+          ImageIO.read(zip.getInputStream(zip.getEntry(EpubRewriter.OPF_DIR + "images/img0.png")));
+      assertThat(image.getType()).isEqualTo(BufferedImage.TYPE_BYTE_GRAY);
+    }
+  }
+
+  @Test
+  void rejectsStubPage() {
+    Path epub = tempDir.resolve("stub.epub");
+
+    boolean valid = generator.generate(article("stub.html"), epub, Runnable::run).join();
+
+    assertThat(valid).isFalse();
+  }
+
+  private Article article(String page) {
+    return Article.of(
+        ARTICLE_ID,
+        "http://localhost:" + server.getAddress().getPort() + "/pages/" + page,
+        "The Lighthouse Keeper");
+  }
+
+  private void servePage(HttpExchange exchange) throws IOException {
+    String path = exchange.getRequestURI().getPath();
+    try (InputStream page = getClass().getResourceAsStream(path)) {
+      if (page == null) {
+        exchange.sendResponseHeaders(404, -1);
+        exchange.close();
+        return;
+      }
+      respond(exchange, "text/html; charset=utf-8", page.readAllBytes());
+    }
+  }
+
+  private static void respond(HttpExchange exchange, String contentType, byte[] body)
+      throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    exchange.sendResponseHeaders(200, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  private static byte[] png(int width, int height) throws IOException {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    for (int x = 0; x < width; x++) {
+      for (int y = 0; y < height; y++) {
+        image.setRGB(x, y, (x * 255 / width) << 16 | (y * 255 / height) << 8);
+      }
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(image, "png", out);
+    return out.toByteArray();
+  }
+
+  private static String read(ZipFile zip, String name) throws IOException {
+    ZipEntry entry = zip.getEntry(name);
+    assertThat(entry).as(name).isNotNull();
+    try (InputStream in = zip.getInputStream(entry)) {
+      return new String(in.readAllBytes(), UTF_8);
+    }
+  }
+}
@@ -0,0 +1,50 @@
+package nl.carosi.remarkablepocket;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.file.Path;
+import java.util.Set;
+import nl.carosi.remarkablepocket.model.Document;
+import nl.carosi.remarkablepocket.model.DocumentMetadata;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Caches metadata in a database in a temporary config directory.
+class MetadataCacheTest {
+  @TempDir Path tempDir;
+  private MetadataCache cache;
+
+  @BeforeEach
+  void setUp() {
+    cache = new MetadataCache(tempDir);
+  }
+
+  @AfterEach
+  void tearDown() {
+    cache.close();
+  }
+
+  @Test
+  void returnsMetadataOfUnmodifiedDocument() {
+    Document doc = new Document(3, "Article", "doc-1", 2, "2024-01-01T00:00:00Z");
+    cache.put(new DocumentMetadata(doc, 12, "pocket-1"));
+
+    assertThat(cache.get(doc)).contains(new DocumentMetadata(doc, 12, "pocket-1"));
+    assertThat(cache.get(new Document(3, "Article", "doc-1", 3, "2024-01-02T00:00:00Z"))).isEmpty();
+  }
+
+  @Test
+  void removesMetadataOfDeletedDocuments() {
+    Document kept = new Document(0, "Kept", "doc-1", 1, "2024-01-01T00:00:00Z");
+    Document deleted = new Document(0, "Deleted", "doc-2", 1, "2024-01-01T00:00:00Z");
+    cache.put(new DocumentMetadata(kept, 5, "pocket-1"));
+    cache.put(new DocumentMetadata(deleted, 7, "pocket-2"));
+
+    cache.retain(Set.of("doc-1"));
+
+    assertThat(cache.get(kept)).isPresent();
+    assertThat(cache.get(deleted)).isEmpty();
+  }
+}
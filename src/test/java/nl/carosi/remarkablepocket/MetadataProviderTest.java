@@ -0,0 +1,188 @@
+package nl.carosi.remarkablepocket;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static nl.carosi.remarkablepocket.ArticleDownloader.POCKET_ID_SEPARATOR;
+import static nl.carosi.remarkablepocket.EpubRewriter.OPF_PATH;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import nl.carosi.remarkablepocket.model.Document;
+import nl.carosi.remarkablepocket.model.RemarkableEntry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Reads documents, of which only the ones that can't be read are deleted, not the ones that
+// couldn't be retrieved.
+class MetadataProviderTest {
+  private static final String NAME = "Article";
+
+  @TempDir Path tempDir;
+  private final FailingClient client = new FailingClient();
+  private ArticleValidator validator;
+  private MetadataCache cache;
+  private SyncJournal journal;
+  private WorkingStorage storage;
+  private MetadataProvider metadataProvider;
+
+  @BeforeEach
+  void setUp() {
+    SyncMetrics metrics = new SyncMetrics(new SimpleMeterRegistry(), 10, "");
+    validator = new ArticleValidator(tempDir, metrics);
+    cache = new MetadataCache(tempDir);
+    journal = new SyncJournal(tempDir);
+    storage = new WorkingStorage(10, 1024);
+    metadataProvider =
+        new MetadataProvider(
+            client, new ObjectMapper(), validator, cache, journal, metrics, storage);
+  }
+
+  @AfterEach
+  void tearDown() {
+    validator.close();
+    cache.close();
+    journal.close();
+    storage.delete();
+  }
+
+  @Test
+  void keepsDocumentWhenInfoFails() {
+    client.infoFails = true;
+
+    assertThatThrownBy(() -> metadataProvider.getMetadata(NAME))
+        .isInstanceOf(IllegalStateException.class);
+    assertThat(client.deleted).isEmpty();
+    assertThat(validator.isValid(NAME)).isTrue();
+  }
+
+  @Test
+  void keepsDocumentWhenDownloadFails() {
+    client.downloadFails = true;
+
+    assertThatThrownBy(() -> metadataProvider.getMetadata(NAME))
+        .isInstanceOf(IllegalStateException.class);
+    assertThat(client.deleted).isEmpty();
+    assertThat(validator.isValid(NAME)).isTrue();
+  }
+
+  @Test
+  void deletesDocumentThatCantBeRead() {
+    assertThat(metadataProvider.getMetadata(NAME)).isNull();
+    assertThat(client.deleted).containsExactly(NAME);
+    assertThat(validator.isValid(NAME)).isFalse();
+  }
+
+  @Test
+  void readsPocketIdFromStoredEpub() throws IOException {
+    client.bundle = document(ZipEntry.STORED);
+
+    assertThat(metadataProvider.getMetadata(NAME).pocketId()).isEqualTo("pocket-1");
+  }
+
+  @Test
+  void readsPocketIdFromCompressedEpub() throws IOException {
+    client.bundle = document(ZipEntry.DEFLATED);
+
+    assertThat(metadataProvider.getMetadata(NAME).pocketId()).isEqualTo("pocket-1");
+  }
+
+  // A document whose epub is added to the bundle with the given method.
+  private static byte[] document(int method) throws IOException {
+    String opf =
+        "<package><metadata><publisher>Pocket"
+            + POCKET_ID_SEPARATOR
+            + "pocket-1</publisher></metadata></package>";
+    byte[] epub = zip(List.of(ZipEntry.DEFLATED), List.of(OPF_PATH), List.of(opf.getBytes(UTF_8)));
+    return zip(
+        List.of(ZipEntry.DEFLATED, method),
+        List.of("doc-1.content", "doc-1.epub"),
+        List.of("{\"pageCount\": 3}".getBytes(UTF_8), epub));
+  }
+
+  private static byte[] zip(List<Integer> methods, List<String> names, List<byte[]> contents)
+      throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (ZipOutputStream zip = new ZipOutputStream(out)) {
+      for (int i = 0; i < names.size(); i++) {
+        ZipEntry entry = new ZipEntry(names.get(i));
+        entry.setMethod(methods.get(i));
+        if (methods.get(i) == ZipEntry.STORED) {
+          CRC32 crc = new CRC32();
+          crc.update(contents.get(i));
+          entry.setSize(contents.get(i).length);
+          entry.setCrc(crc.getValue());
+        }
+        zip.putNextEntry(entry);
+        zip.write(contents.get(i));
+        zip.closeEntry();
+      }
+    }
+    return out.toByteArray();
+  }
+
+  // Serves a bundle that isn't a zip archive, unless its commands fail as if they timed out.
+  private static final class FailingClient implements RemarkableClient {
+    private final List<String> deleted = new ArrayList<>();
+    private boolean infoFails;
+    private boolean downloadFails;
+    private byte[] bundle = "not a zip archive".getBytes(UTF_8);
+
+    @Override
+    public void openSession() {}
+
+    @Override
+    public void closeSession() {}
+
+    @Override
+    public List<RemarkableEntry> list() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Document info(String articleName) {
+      if (infoFails) {
+        throw new IllegalStateException("Command timed out after 5m and was killed");
+      }
+      return new Document(0, articleName, "doc-1", 1, "0");
+    }
+
+    @Override
+    public DocumentBundle download(String articleName) {
+      if (downloadFails) {
+        throw new IllegalStateException("Command failed with exit status 1");
+      }
+      return DocumentBundle.inMemory(bundle);
+    }
+
+    @Override
+    public void upload(Path path) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void uploadAll(List<Path> paths) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void delete(String articleName) {
+      deleted.add(articleName);
+    }
+
+    @Override
+    public void createDir(String path) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package nl.carosi.remarkablepocket;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.MoreFiles;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import nl.carosi.remarkablepocket.model.Article;
+import nl.carosi.remarkablepocket.model.Document;
+import nl.carosi.remarkablepocket.model.DocumentMetadata;
+import nl.carosi.remarkablepocket.model.Download;
+import nl.carosi.remarkablepocket.model.RemarkableEntry;
+import nl.carosi.remarkablepocket.model.SyncedArticle;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Syncs with a fake Remarkable whose commands fail for some documents.
+class RemarkableServiceTest {
+  @TempDir Path tempDir;
+  private final FakeClient client = new FakeClient();
+  private SyncJournal journal;
+
+  @BeforeEach
+  void setUp() {
+    journal = new SyncJournal(tempDir);
+  }
+
+  @AfterEach
+  void tearDown() {
+    journal.close();
+  }
+
+  private RemarkableService service(boolean batchUpload) {
+    return new RemarkableService(client, null, journal, "/Pocket/", 1, batchUpload);
+  }
+
+  @Test
+  void keepsCachedMetadataWhenListingIsEmpty() {
+    SyncMetrics metrics = new SyncMetrics(new SimpleMeterRegistry(), 10, "");
+    ArticleValidator validator = new ArticleValidator(tempDir, metrics);
+    MetadataCache cache = new MetadataCache(tempDir);
+    WorkingStorage storage = new WorkingStorage(10, 1024);
+    try {
+      Document doc = new Document(0, "Article", "doc-1", 1, "2024-01-01T00:00:00Z");
+      cache.put(new DocumentMetadata(doc, 5, "pocket-1"));
+      MetadataProvider metadataProvider =
+          new MetadataProvider(
+              client, new ObjectMapper(), validator, cache, journal, metrics, storage);
+
+      new RemarkableService(client, metadataProvider, journal, "/Pocket/", 1, false)
+          .listReadDocuments();
+
+      assertThat(cache.get(doc)).isPresent();
+    } finally {
+      validator.close();
+      cache.close();
+      storage.delete();
+    }
+  }
+
+  @Test
+  void uploadsRemainingArticlesAfterFailedUpload() throws IOException {
+    client.failing = Set.of("Second");
+    List<Download> downloads = List.of(download("1", "First"), download("2", "Second"));
+
+    List<Download> uploaded = service(false).upload(downloads);
+
+    assertThat(uploaded).containsExactly(downloads.get(0));
+    assertThat(journal.articles()).extracting(SyncedArticle::pocketId).containsExactly("1");
+  }
+
+  @Test
+  void recordsArticlesUploadedBeforeBatchFailed() throws IOException {
+    client.failing = Set.of("Second");
+    List<Download> downloads =
+        List.of(download("1", "First"), download("2", "Second"), download("3", "Third"));
+
+    List<Download> uploaded = service(true).upload(downloads);
+
+    assertThat(uploaded).containsExactly(downloads.get(0));
+    assertThat(journal.articles()).extracting(SyncedArticle::pocketId).containsExactly("1");
+  }
+
+  private Download download(String id, String title) throws IOException {
+    Path path = Files.writeString(tempDir.resolve(title + ".epub"), "epub of " + title);
+    return new Download(Article.of(id, "https://example.com/" + id, title), path);
+  }
+
+  // Fails to upload the documents with the given names, and stops a batch at the first of them.
+  private static final class FakeClient implements RemarkableClient {
+    private final List<String> documents = new ArrayList<>();
+    private Set<String> failing = Set.of();
+
+    @Override
+    public void openSession() {}
+
+    @Override
+    public void closeSession() {}
+
+    @Override
+    public List<RemarkableEntry> list() {
+      return documents.stream()
+          .map(name -> new RemarkableEntry(RemarkableEntry.Type.DOCUMENT, name, null))
+          .toList();
+    }
+
+    @Override
+    public Document info(String articleName) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public DocumentBundle download(String articleName) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void upload(Path path) {
+      String name = MoreFiles.getNameWithoutExtension(path);
+      if (failing.contains(name)) {
+        throw new IllegalStateException("Command failed with exit status 1");
+      }
+      documents.add(name);
+    }
+
+    @Override
+    public void uploadAll(List<Path> paths) {
+      paths.forEach(this::upload);
+    }
+
+    @Override
+    public void delete(String articleName) {
+      documents.remove(articleName);
+    }
+
+    @Override
+    public void createDir(String path) {}
+  }
+}